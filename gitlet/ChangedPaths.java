@@ -0,0 +1,257 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.IntFunction;
+
+/** Bloom filters of the paths each commit of a CommitGraph changes from
+ *  its first parent: the files added, modified or removed, and every
+ *  directory holding one.  A filter answers for sure that a path is
+ *  unchanged, or that it may have changed, so a walk looking for the
+ *  commits changing a path only reads and compares the trees of the few
+ *  commits it lets through.
+ *
+ *  The file holds a record per commit, in the order of the graph: its
+ *  position, the length of its filter, and the filter, whose bits are set
+ *  by HASHES hashes of each path with BITS_PER_PATH bits per path, as Git
+ *  does.  A commit changing more than MAX_PATHS paths gets no filter and
+ *  may change anything; so do the commits without a record, as when the
+ *  file was written before them or discarded.  The records are only
+ *  appended, and dropped with the commits of the graph they follow.
+ *
+ *  @author Han Liang
+ */
+class ChangedPaths {
+
+    /** Magic number at the start of the file. */
+    private static final int MAGIC = 0x47435050;
+    /** Version of the file format. */
+    private static final int VERSION = 1;
+    /** Length of the header: magic and version. */
+    private static final int HEADER = 8;
+    /** Length of the head of a record: position and filter length. */
+    private static final int RECORD_HEAD = 8;
+    /** Filter length of a commit changing too many paths to filter. */
+    private static final int TOO_MANY = -1;
+    /** Most paths a filter is built for. */
+    private static final int MAX_PATHS = 512;
+    /** Bits of filter per path. */
+    private static final int BITS_PER_PATH = 10;
+    /** Number of bits set for each path. */
+    private static final int HASHES = 7;
+    /** Seeds of the two hashes the bits are derived from. */
+    private static final int SEED1 = 0x293ae76f, SEED2 = 0x7e646e2c;
+
+    /** The file holding the filters. */
+    private final File file;
+    /** The mapped file, or null if it must be mapped again. */
+    private MappedByteBuffer table;
+    /** The offset of the record of each position, or 0 if it has none. */
+    private int[] records;
+
+    /** The filters stored in FILE. */
+    ChangedPaths(File file) {
+        this.file = file;
+    }
+
+    /** Record that the commit at position K of the graph changes the files
+     *  at PATHS, and no others. */
+    void add(int k, Collection<String> paths) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.WRITE)) {
+            long end = channel.size();
+            if (end == 0) {
+                channel.write(ByteBuffer.allocate(HEADER).putInt(MAGIC).putInt(VERSION).flip(), 0);
+                end = HEADER;
+            }
+            byte[] filter = filter(paths);
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEAD + (filter == null ? 0 : filter.length));
+            record.putInt(k).putInt(filter == null ? TOO_MANY : filter.length);
+            if (filter != null) {
+                record.put(filter);
+            }
+            channel.write(record.flip(), end);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        reload();
+    }
+
+    /** Replace the filters by those of the first SIZE commits of the graph,
+     *  the commit at position K changing the files at CHANGED(K). */
+    void rebuild(int size, IntFunction<Collection<String>> changed) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                 Files.newOutputStream(file.toPath()), Utils.BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (int k = 0; k < size; k += 1) {
+                byte[] filter = filter(changed.apply(k));
+                out.writeInt(k);
+                out.writeInt(filter == null ? TOO_MANY : filter.length);
+                if (filter != null) {
+                    out.write(filter);
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        reload();
+    }
+
+    /** Return false if the commit at position K certainly leaves PATH, a
+     *  file or a directory, as its first parent has it, and true if it may
+     *  change it. */
+    boolean mayChange(int k, String path) {
+        load();
+        if (k >= records.length || records[k] == 0) {
+            return true;
+        }
+        int length = table.getInt(records[k] + 4);
+        if (length == TOO_MANY) {
+            return true;
+        }
+        int start = records[k] + RECORD_HEAD;
+        int bits = length * 8;
+        byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+        int hash1 = murmur3(bytes, SEED1), hash2 = murmur3(bytes, SEED2);
+        for (int i = 0; i < HASHES; i += 1) {
+            int bit = Integer.remainderUnsigned(hash1 + i * hash2, bits);
+            if ((table.get(start + bit / 8) & (1 << (bit % 8))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Drop the filters of the commits at positions SIZE and after. */
+    void truncate(int size) {
+        if (!file.isFile()) {
+            return;
+        }
+        load();
+        for (int k = size; k < records.length; k += 1) {
+            if (records[k] != 0) {
+                try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                            StandardOpenOption.WRITE)) {
+                    channel.truncate(records[k]);
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+                reload();
+                return;
+            }
+        }
+    }
+
+    /** Unmap the filters, so that they are read again. */
+    void reload() {
+        table = null;
+        records = null;
+    }
+
+    /** Discard every filter. */
+    void clear() {
+        file.delete();
+        reload();
+    }
+
+    /** Return the filter of PATHS and the directories holding them, or
+     *  null if they are too many. */
+    private static byte[] filter(Collection<String> paths) {
+        Set<String> all = new HashSet<>();
+        for (String path : paths) {
+            for (int slash = path.length(); slash > 0; slash = path.lastIndexOf('/', slash - 1)) {
+                if (!all.add(path.substring(0, slash))) {
+                    break;
+                }
+            }
+        }
+        if (all.size() > MAX_PATHS) {
+            return null;
+        }
+        byte[] filter = new byte[Math.max(1, (all.size() * BITS_PER_PATH + 7) / 8)];
+        int bits = filter.length * 8;
+        for (String path : all) {
+            byte[] bytes = path.getBytes(StandardCharsets.UTF_8);
+            int hash1 = murmur3(bytes, SEED1), hash2 = murmur3(bytes, SEED2);
+            for (int i = 0; i < HASHES; i += 1) {
+                int bit = Integer.remainderUnsigned(hash1 + i * hash2, bits);
+                filter[bit / 8] |= (byte) (1 << (bit % 8));
+            }
+        }
+        return filter;
+    }
+
+    /** Return the 32-bit MurmurHash3 of BYTES with SEED. */
+    private static int murmur3(byte[] bytes, int seed) {
+        int hash = seed;
+        int blocks = bytes.length / 4;
+        for (int i = 0; i < blocks; i += 1) {
+            int block = (bytes[4 * i] & 0xff) | (bytes[4 * i + 1] & 0xff) << 8
+                | (bytes[4 * i + 2] & 0xff) << 16 | (bytes[4 * i + 3] & 0xff) << 24;
+            hash ^= Integer.rotateLeft(block * 0xcc9e2d51, 15) * 0x1b873593;
+            hash = Integer.rotateLeft(hash, 13) * 5 + 0xe6546b64;
+        }
+        if (bytes.length % 4 != 0) {
+            int tail = 0;
+            for (int i = bytes.length - 1; i >= 4 * blocks; i -= 1) {
+                tail = tail << 8 | bytes[i] & 0xff;
+            }
+            hash ^= Integer.rotateLeft(tail * 0xcc9e2d51, 15) * 0x1b873593;
+        }
+        hash ^= bytes.length;
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        return hash ^ (hash >>> 16);
+    }
+
+    /** Map the file and find its records, if not done yet.  A missing or
+     *  damaged file holds no records. */
+    private void load() {
+        if (records != null) {
+            return;
+        }
+        records = new int[0];
+        if (!file.isFile()) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            table = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (table.limit() < HEADER || table.getInt(0) != MAGIC || table.getInt(4) != VERSION) {
+            return;
+        }
+        int[] found = new int[64];
+        int count = 0;
+        for (int offset = HEADER; offset + RECORD_HEAD <= table.limit(); ) {
+            int k = table.getInt(offset);
+            int length = Math.max(0, table.getInt(offset + 4));
+            if (k < count || offset + RECORD_HEAD + length > table.limit()) {
+                break;
+            }
+            if (k >= found.length) {
+                found = Arrays.copyOf(found, Math.max(k + 1, 2 * found.length));
+            }
+            found[k] = offset;
+            count = k + 1;
+            offset += RECORD_HEAD + length;
+        }
+        records = Arrays.copyOf(found, count);
+    }
+}
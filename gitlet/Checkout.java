@@ -0,0 +1,239 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static gitlet.Utils.*;
+
+/** Writes the files of a commit into the working directory.
+ *
+ *  Checkout runs in two phases.  First, a pool of workers reads and inflates
+ *  every blob to be written, each into its own temporary file under
+ *  .gitlet/checkout.  The working directory is not touched until all of them
+ *  have succeeded; if any fails, the temporary files are deleted.  Then the
+ *  files replaced or no longer tracked are moved aside into .gitlet/checkout
+ *  and the temporary files are renamed into place, which only moves
+ *  directory entries; the originals are deleted once every rename has
+ *  succeeded.  If one fails, the renames are undone and the originals moved
+ *  back, so that in either phase a failure leaves the working directory as
+ *  it was.  An original that cannot be moved back is left in
+ *  .gitlet/checkout, and named in the error.
+ *
+ *  The number of workers is the value of the system property
+ *  gitlet.checkout.workers, by default the number of processors.
+ *
+ *  @author Han Liang
+ */
+class Checkout {
+
+    /** The system property giving the number of workers. */
+    static final String WORKERS_PROPERTY = "gitlet.checkout.workers";
+
+    /** The working directory written. */
+    private final File workDir;
+    /** The directory of the temporary files. */
+    private final File tempDir;
+    /** The store holding the blobs. */
+    private final ObjectStore blobs;
+
+    /** A checkout from BLOBS into WORKDIR, staging files in TEMPDIR. */
+    Checkout(File workDir, File tempDir, ObjectStore blobs) {
+        this.workDir = workDir;
+        this.tempDir = tempDir;
+        this.blobs = blobs;
+    }
+
+    /** Replace the files named in REMOVED by FILES, a map from file names
+     *  to blob ids.  Files in both are overwritten.  On failure, throw a
+     *  GitletException, leaving the working directory unchanged but for
+     *  the originals it names as left in .gitlet/checkout. */
+    void run(Collection<String> removed, Map<String, String> files) {
+        List<String> names = new ArrayList<>(files.keySet());
+        tempDir.mkdirs();
+        try {
+            write(names, files);
+        } catch (IllegalArgumentException excp) {
+            clean(names.size());
+            throw error("Checkout failed: %s", excp.getMessage());
+        }
+        List<String> deleted = new ArrayList<>();
+        for (String name : removed) {
+            if (!files.containsKey(name) && join(workDir, name).isFile()) {
+                deleted.add(name);
+            }
+        }
+        List<String> aside = new ArrayList<>();
+        List<File> originals = new ArrayList<>();
+        List<String> placed = new ArrayList<>();
+        List<File> made = new ArrayList<>();
+        try {
+            for (String name : deleted) {
+                moveAside(name, aside, originals);
+            }
+            for (int k = 0; k < names.size(); k += 1) {
+                File target = join(workDir, names.get(k));
+                if (target.isFile()) {
+                    moveAside(names.get(k), aside, originals);
+                }
+                makeParents(target, made);
+                Files.move(temp(k).toPath(), target.toPath());
+                placed.add(names.get(k));
+            }
+        } catch (IOException excp) {
+            List<File> kept = rollBack(placed, aside, originals, made);
+            clean(names.size());
+            if (kept.isEmpty()) {
+                throw error("Checkout failed: %s", excp.getMessage());
+            }
+            List<String> left = new ArrayList<>();
+            for (File original : kept) {
+                String name = aside.get(originals.indexOf(original));
+                left.add(name + " in " + workDir.toPath().relativize(original.toPath()));
+            }
+            throw error("Checkout failed: %s; originals left: %s", excp.getMessage(),
+                        String.join(", ", left));
+        }
+        for (File original : originals) {
+            original.delete();
+        }
+        for (String name : deleted) {
+            deleteEmptyParents(name);
+        }
+        tempDir.delete();
+    }
+
+    /** Move the file NAME of the working directory to a new file in the
+     *  temporary directory, adding NAME to ASIDE and the file to
+     *  ORIGINALS. */
+    private void moveAside(String name, List<String> aside, List<File> originals)
+        throws IOException {
+        File original = File.createTempFile("original", ".old", tempDir);
+        try {
+            Files.move(join(workDir, name).toPath(), original.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            original.delete();
+            throw excp;
+        }
+        aside.add(name);
+        originals.add(original);
+    }
+
+    /** Create the missing directories holding TARGET, adding each to MADE
+     *  in the order made. */
+    private static void makeParents(File target, List<File> made) {
+        List<File> missing = new ArrayList<>();
+        for (File dir = target.getParentFile(); !dir.exists(); dir = dir.getParentFile()) {
+            missing.add(dir);
+        }
+        for (int i = missing.size() - 1; i >= 0; i -= 1) {
+            if (missing.get(i).mkdir()) {
+                made.add(missing.get(i));
+            }
+        }
+    }
+
+    /** Undo the second phase of a failed checkout: delete the files in
+     *  PLACED, move each file in ORIGINALS back to the name at the same
+     *  index of ASIDE, and delete the directories in MADE.  Return the
+     *  originals that could not be moved back. */
+    private List<File> rollBack(List<String> placed, List<String> aside,
+                                List<File> originals, List<File> made) {
+        for (String name : placed) {
+            join(workDir, name).delete();
+        }
+        List<File> kept = new ArrayList<>();
+        for (int j = aside.size() - 1; j >= 0; j -= 1) {
+            try {
+                Files.move(originals.get(j).toPath(), join(workDir, aside.get(j)).toPath(),
+                           StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException excp) {
+                kept.add(0, originals.get(j));
+            }
+        }
+        for (int i = made.size() - 1; i >= 0; i -= 1) {
+            made.get(i).delete();
+        }
+        return kept;
+    }
+
+    /** Delete the directories holding the file at PATH that are left
+     *  empty, up to the working directory. */
+    private void deleteEmptyParents(String path) {
+        for (File dir = join(workDir, path).getParentFile();
+             !dir.equals(workDir) && dir.delete(); dir = dir.getParentFile()) {
+            continue;
+        }
+    }
+
+    /** Write the blob of each of NAMES in FILES to its temporary file,
+     *  using the pool of workers.  Stop at the first failure. */
+    private void write(List<String> names, Map<String, String> files) {
+        if (names.isEmpty()) {
+            return;
+        }
+        int workers = Math.min(names.size(), workers());
+        ExecutorService pool = Executors.newFixedThreadPool(workers, task -> {
+            Thread thread = new Thread(task, "checkout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> writes = new ArrayList<>();
+            for (int k = 0; k < names.size(); k += 1) {
+                String blob = files.get(names.get(k));
+                File temp = temp(k);
+                writes.add(pool.submit(() -> blobs.copyTo(blob, temp)));
+            }
+            for (Future<?> write : writes) {
+                try {
+                    write.get();
+                } catch (ExecutionException excp) {
+                    throw new IllegalArgumentException(excp.getCause().getMessage());
+                } catch (InterruptedException excp) {
+                    throw new IllegalArgumentException("interrupted");
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Return the temporary file of the K-th file written. */
+    private File temp(int k) {
+        return join(tempDir, k + ".tmp");
+    }
+
+    /** Delete the temporary files of the first COUNT files written, then
+     *  the temporary directory unless originals are left in it. */
+    private void clean(int count) {
+        for (int k = 0; k < count; k += 1) {
+            temp(k).delete();
+        }
+        tempDir.delete();
+    }
+
+    /** Return the number of workers to use. */
+    private static int workers() {
+        int workers = Runtime.getRuntime().availableProcessors();
+        String value = System.getProperty(WORKERS_PROPERTY);
+        if (value != null) {
+            try {
+                workers = Integer.parseInt(value.trim());
+            } catch (NumberFormatException excp) {
+                throw error("Invalid %s: %s", WORKERS_PROPERTY, value);
+            }
+        }
+        return Math.max(1, workers);
+    }
+}
@@ -1,7 +1,12 @@
 package gitlet;
 
-import java.io.File;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.Date; // You'll likely use this in this class
 import java.util.HashMap;
 
@@ -14,6 +19,9 @@ import static gitlet.Utils.*;
  *  @author Han Liang
  */
 public class Commit implements Serializable {
+    /** Fixed so that commits written before trees were added still read. */
+    private static final long serialVersionUID = 6509585185667363228L;
+
     /**
      * List all instance variables of the Commit class here with a useful
      * comment above them describing what that variable represents and how that
@@ -32,54 +40,101 @@ public class Commit implements Serializable {
     private String parent;
     private String secondParent;
 
-    /** Map from file names to reference of contents. */
-    public HashMap<String, String> trees;
+    /** Map from file names to reference of contents, in commits written
+     *  before format 6; null in later ones. */
+    private HashMap<String, String> trees;
+
+    /** Reference to the root tree of this commit. */
+    private String tree;
+
+    /** Magic number at the start of an encoded commit. */
+    private static final int MAGIC = 0x47434d54;
+    /** Version of the encoding. */
+    private static final byte VERSION = 1;
+    /** First two bytes of a commit written by Java serialization. */
+    private static final int SERIALIZED_MAGIC = 0xaced;
 
     /** Construct the initial commit of the repository. */
     public Commit() {
         message = "initial commit";
         date = new Date(0);
-        trees = new HashMap<>();
+        tree = Tree.EMPTY;
     }
 
-    /** Construct a new commit. */
-    public Commit(String message) {
+    /** Construct a new commit of the given root tree, made now. */
+    public Commit(String message, String parent, String tree) {
+        this(message, parent, null, tree);
+    }
+
+    /** Construct a new merge commit of the given root tree, made now. */
+    public Commit(String message, String parent, String secondParent, String tree) {
+        this(message, new Date(), parent, secondParent, tree);
+    }
+
+    /** Construct a commit from its decoded fields. */
+    private Commit(String message, Date date, String parent, String secondParent,
+                   String tree) {
         this.message = message;
-        date = new Date();
-        this.parent = readContentsAsString(Repository.HEADPointer());
-        Commit parentCommit = Repository.HEADCommit();
-        this.trees = parentCommit.trees;
-        for (String fileName : plainFilenamesIn(Repository.STAGED_DIR)) {
-            File filePath = join(Repository.STAGED_DIR, fileName);
-            byte[] fileContent = readContents(filePath);
-            String fileRef = sha1(fileContent);
-            this.trees.put(fileName, fileRef);
-            filePath = join(Repository.BLOB_DIR, fileRef);
-            if (!filePath.exists()) {
-                writeContents(filePath, fileContent);
+        this.date = date;
+        this.parent = parent;
+        this.secondParent = secondParent;
+        this.tree = tree;
+    }
+
+    /** Return the canonical encoding of this commit, whose hash is its ref:
+     *  the magic number and version, the date, the number of parents and
+     *  their raw refs, the raw ref of the root tree, and the length of the
+     *  message in UTF-8 followed by the message. */
+    public byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(date.getTime());
+            out.writeByte(parent == null ? 0 : secondParent == null ? 1 : 2);
+            if (parent != null) {
+                out.write(hexToBytes(parent));
             }
+            if (secondParent != null) {
+                out.write(hexToBytes(secondParent));
+            }
+            out.write(hexToBytes(tree));
+            byte[] text = message.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(text.length);
+            out.write(text);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
         }
-        for (String fileName : plainFilenamesIn(Repository.STAGED_RM_DIR)) {
-            this.trees.remove(fileName);
-        }
+        return bytes.toByteArray();
     }
 
-    public Commit(String givenBranchName, HashMap<String, String> trees) {
-        String currentBranchName = Repository.HEADPointer().getName();
-        this.message = "Merged " + givenBranchName + " into " + currentBranchName + ".";
-        this.date = new Date();
-        this.parent = readContentsAsString(Repository.HEADPointer());
-        this.secondParent = readContentsAsString(join(Repository.HEADS_DIR, givenBranchName));
-        this.trees = trees;
-        // Add staged files to the blob.
-        for (String fileName : plainFilenamesIn(Repository.STAGED_DIR)) {
-            File filePath = join(Repository.STAGED_DIR, fileName);
-            byte[] fileContent = readContents(filePath);
-            String fileRef = sha1(fileContent);
-            filePath = join(Repository.BLOB_DIR, fileRef);
-            if (!filePath.exists()) {
-                writeContents(filePath, fileContent);
+    /** Return the commit encoded in BYTES, which is either the result of
+     *  encode or, for commits of format 6 and earlier, a serialized Commit. */
+    public static Commit decode(byte[] bytes) {
+        if (bytes.length >= 2
+            && ((bytes[0] & 0xff) << 8 | (bytes[1] & 0xff)) == SERIALIZED_MAGIC) {
+            return deserialize(bytes, Commit.class);
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+                throw new IllegalArgumentException("bad commit");
+            }
+            Date date = new Date(in.readLong());
+            byte[] ref = new byte[UID_LENGTH / 2];
+            int parents = in.readByte();
+            String[] parentRefs = new String[2];
+            for (int k = 0; k < parents; k += 1) {
+                in.readFully(ref);
+                parentRefs[k] = bytesToHex(ref, 0, ref.length);
             }
+            in.readFully(ref);
+            String tree = bytesToHex(ref, 0, ref.length);
+            byte[] text = new byte[in.readInt()];
+            in.readFully(text);
+            return new Commit(new String(text, StandardCharsets.UTF_8), date,
+                              parentRefs[0], parentRefs[1], tree);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
         }
     }
 
@@ -107,11 +162,6 @@ public class Commit implements Serializable {
         return this.date.hashCode();
     }
 
-    private Commit fromFile (String commitName) {
-        File commitFile = join(Repository.COMMIT_DIR, commitName);
-        return readObject(commitFile, Commit.class);
-    }
-
     public String getParent() {
         return this.parent;
     }
@@ -127,4 +177,25 @@ public class Commit implements Serializable {
     public String getMessage() {
         return this.message;
     }
+
+    /** Return the reference to the root tree, writing the trees of a commit
+     *  from before format 6 to STORE the first time. */
+    String getTree(Tree store) {
+        if (tree == null) {
+            tree = store.apply(Tree.EMPTY, trees);
+        }
+        return tree;
+    }
+
+    /** Return the reference to the blob of the file at the given path, or
+     *  null if it is not tracked, reading trees from STORE. */
+    String getBlob(Tree store, String fileName) {
+        return trees != null ? trees.get(fileName) : store.get(tree, fileName);
+    }
+
+    /** Return a map from the paths of all tracked files to their blobs,
+     *  reading trees from STORE. */
+    HashMap<String, String> files(Tree store) {
+        return trees != null ? new HashMap<>(trees) : store.files(tree);
+    }
 }
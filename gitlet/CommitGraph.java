@@ -0,0 +1,246 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static gitlet.Utils.*;
+
+/** The commit graph of a repository: a memory-mapped table with one
+ *  fixed-width record per commit holding its id, the positions of its
+ *  parents in the table, its date and its generation number.  A commit
+ *  always comes after its parents, so the table only ever grows at the end.
+ *  Walks over the history read the table instead of the commits, which
+ *  are only needed for their messages and trees.
+ *
+ *  The generation number of a root commit is 1, and that of any other
+ *  commit is one more than the largest generation of its parents, so a
+ *  commit can only be an ancestor of commits of larger generation.
+ *
+ *  @author Han Liang
+ */
+class CommitGraph {
+
+    /** Magic number at the start of the file. */
+    private static final int MAGIC = 0x47434752;
+    /** Version of the file format. */
+    private static final int VERSION = 1;
+    /** Length of the header: magic and version. */
+    private static final int HEADER = 8;
+    /** Length of the raw id of a commit. */
+    private static final int ID_BYTES = UID_LENGTH / 2;
+    /** Length of a record: id, two parents, date and generation. */
+    private static final int RECORD = ID_BYTES + 4 + 4 + 8 + 4;
+    /** Parent position of a commit without that parent. */
+    static final int NONE = -1;
+
+    /** The file holding the table. */
+    private final File file;
+    /** The mapped table, or null if it must be mapped again. */
+    private MappedByteBuffer table;
+    /** The index from commit ids to positions. */
+    private final CommitIndex index;
+    /** The filters of the paths each commit changes. */
+    private final ChangedPaths paths;
+
+    /** The commit graph stored in FILE, with its id index in INDEXFILE and
+     *  the filters of the paths its commits change in PATHSFILE. */
+    CommitGraph(File file, File indexFile, File pathsFile) {
+        this.file = file;
+        this.index = new CommitIndex(indexFile, this);
+        this.paths = new ChangedPaths(pathsFile);
+    }
+
+    /** Return true iff the graph has been written. */
+    boolean exists() {
+        return file.exists();
+    }
+
+    /** Return the number of commits in the graph. */
+    int size() {
+        return (table().limit() - HEADER) / RECORD;
+    }
+
+    /** Return the position of the commit ID, or NONE if it is absent. */
+    int indexOf(String id) {
+        return index.find(id);
+    }
+
+    /** Return the ids of at most LIMIT commits whose ids start with the
+     *  hexadecimal numeral PREFIX. */
+    List<String> idsStartingWith(String prefix, int limit) {
+        return index.startingWith(prefix, limit);
+    }
+
+    /** Return the id of the commit at position K. */
+    String id(int k) {
+        byte[] id = new byte[ID_BYTES];
+        table().get(record(k), id);
+        return bytesToHex(id, 0, ID_BYTES);
+    }
+
+    /** Return the position of the first parent of commit K, or NONE. */
+    int parent(int k) {
+        return table().getInt(record(k) + ID_BYTES);
+    }
+
+    /** Return the position of the second parent of commit K, or NONE. */
+    int secondParent(int k) {
+        return table().getInt(record(k) + ID_BYTES + 4);
+    }
+
+    /** Return the date of commit K in milliseconds since the epoch. */
+    long date(int k) {
+        return table().getLong(record(k) + ID_BYTES + 8);
+    }
+
+    /** Return the generation number of commit K. */
+    int generation(int k) {
+        return table().getInt(record(k) + ID_BYTES + 16);
+    }
+
+    /** Return the filters of the paths the commits of the graph change. */
+    ChangedPaths changedPaths() {
+        return paths;
+    }
+
+    /** Unmap the table, the index and the filters, so that they are read
+     *  again. */
+    void reload() {
+        table = null;
+        index.reload();
+        paths.reload();
+    }
+
+    /** Append the commit ID, whose parents must already be in the graph. */
+    void append(String id, Commit commit) {
+        int parent = commit.getParent() == null ? NONE : indexOf(commit.getParent());
+        int secondParent = commit.getSecondParent() == null
+            ? NONE : indexOf(commit.getSecondParent());
+        int generation = 1 + Math.max(parent == NONE ? 0 : generation(parent),
+                                      secondParent == NONE ? 0 : generation(secondParent));
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD);
+        putRecord(record, id, parent, secondParent, commit.getDate().getTime(),
+                  generation);
+        record.flip();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.WRITE)) {
+            channel.write(record, HEADER + (long) size() * RECORD);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        table = null;
+        index.appended();
+    }
+
+    /** Drop the commits at positions SIZE and after, which were appended by
+     *  a command that was rolled back. */
+    void truncate(int size) {
+        paths.truncate(size);
+        if (!exists() || size() <= size) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.WRITE)) {
+            channel.truncate(HEADER + (long) size * RECORD);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        table = null;
+        index.truncated(size);
+    }
+
+    /** Write a new graph holding exactly the given COMMITS, keyed by id.
+     *  The filters of the paths they change are discarded. */
+    void rebuild(Map<String, Commit> commits) {
+        List<String> order = new ArrayList<>();
+        HashMap<String, Integer> added = new HashMap<>();
+        for (String start : commits.keySet()) {
+            Deque<String> stack = new ArrayDeque<>();
+            stack.push(start);
+            while (!stack.isEmpty()) {
+                String id = stack.peek();
+                if (added.containsKey(id)) {
+                    stack.pop();
+                    continue;
+                }
+                Commit commit = commits.get(id);
+                boolean ready = true;
+                for (String parent : new String[] {commit.getParent(),
+                                                   commit.getSecondParent()}) {
+                    if (parent != null && !added.containsKey(parent)) {
+                        stack.push(parent);
+                        ready = false;
+                    }
+                }
+                if (ready) {
+                    stack.pop();
+                    added.put(id, order.size());
+                    order.add(id);
+                }
+            }
+        }
+
+        ByteBuffer table = ByteBuffer.allocate(HEADER + order.size() * RECORD);
+        table.putInt(MAGIC);
+        table.putInt(VERSION);
+        int[] generations = new int[order.size()];
+        for (int k = 0; k < order.size(); k += 1) {
+            Commit commit = commits.get(order.get(k));
+            int parent = commit.getParent() == null ? NONE : added.get(commit.getParent());
+            int secondParent = commit.getSecondParent() == null
+                ? NONE : added.get(commit.getSecondParent());
+            generations[k] = 1 + Math.max(parent == NONE ? 0 : generations[parent],
+                                          secondParent == NONE ? 0 : generations[secondParent]);
+            putRecord(table, order.get(k), parent, secondParent,
+                      commit.getDate().getTime(), generations[k]);
+        }
+        writeContents(file, table.array());
+        this.table = null;
+        index.clear();
+        paths.clear();
+    }
+
+    /** Put the record of commit ID with parents at PARENT and SECONDPARENT,
+     *  date DATE and generation GENERATION into TABLE. */
+    private static void putRecord(ByteBuffer table, String id, int parent,
+                                  int secondParent, long date, int generation) {
+        table.put(hexToBytes(id));
+        table.putInt(parent);
+        table.putInt(secondParent);
+        table.putLong(date);
+        table.putInt(generation);
+    }
+
+    /** Return the offset of the record of commit K. */
+    private static int record(int k) {
+        return HEADER + k * RECORD;
+    }
+
+    /** Return the mapped table, mapping it if needed. */
+    private MappedByteBuffer table() {
+        if (table == null) {
+            try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                        StandardOpenOption.READ)) {
+                table = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            if (table.getInt(0) != MAGIC || table.getInt(4) != VERSION) {
+                throw new IllegalArgumentException("bad commit graph");
+            }
+        }
+        return table;
+    }
+}
@@ -0,0 +1,246 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/** A sorted index from commit ids to their positions in a CommitGraph,
+ *  memory-mapped and searched by binary search after a 256-way fan-out on
+ *  the first byte.  It answers both exact lookups and lookups of the
+ *  commits whose ids start with a given abbreviation.
+ *
+ *  Commits appended to the graph since the index was last written form a
+ *  short tail that is searched directly in the graph.  Once the tail holds
+ *  MAX_TAIL commits, it is merged into the index in a single linear pass.
+ *
+ *  @author Han Liang
+ */
+class CommitIndex {
+
+    /** Magic number at the start of the file. */
+    private static final int MAGIC = 0x47434958;
+    /** Version of the file format. */
+    private static final int VERSION = 1;
+    /** Length in bytes of a raw commit id. */
+    private static final int ID_BYTES = UID_LENGTH / 2;
+    /** Start of the fan-out table: magic, version and count come first. */
+    private static final int FANOUT = 12;
+    /** Start of the sorted ids. */
+    private static final int IDS = FANOUT + 256 * 4;
+    /** Largest number of commits left out of the index. */
+    private static final int MAX_TAIL = 1024;
+
+    /** The file holding the index. */
+    private final File file;
+    /** The graph indexed. */
+    private final CommitGraph graph;
+    /** The mapped index, or null if it must be mapped again. */
+    private MappedByteBuffer table;
+    /** The number of commits in the index: the first COUNT of the graph. */
+    private int count;
+
+    /** The index stored in FILE of the commits of GRAPH. */
+    CommitIndex(File file, CommitGraph graph) {
+        this.file = file;
+        this.graph = graph;
+    }
+
+    /** Return the position in the graph of the commit ID, or
+     *  CommitGraph.NONE if it is absent. */
+    int find(String id) {
+        byte[] key = hexToBytes(id);
+        table();
+        int first = key[0] & 0xff;
+        int lo = first == 0 ? 0 : table.getInt(FANOUT + (first - 1) * 4);
+        int hi = table.getInt(FANOUT + first * 4) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(mid, id);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return position(mid);
+            }
+        }
+        for (int k = count; k < graph.size(); k += 1) {
+            if (graph.id(k).equals(id)) {
+                return k;
+            }
+        }
+        return CommitGraph.NONE;
+    }
+
+    /** Return the ids of at most LIMIT commits whose ids start with the
+     *  hexadecimal numeral PREFIX. */
+    List<String> startingWith(String prefix, int limit) {
+        table();
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compare(mid, prefix) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        List<String> result = new ArrayList<>();
+        for (int k = lo; k < count && result.size() < limit
+                 && compare(k, prefix) == 0; k += 1) {
+            result.add(id(k));
+        }
+        for (int k = count; k < graph.size() && result.size() < limit; k += 1) {
+            String id = graph.id(k);
+            if (id.startsWith(prefix)) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    /** Note that a commit was appended to the graph, merging the tail into
+     *  the index if it has grown too long. */
+    void appended() {
+        table();
+        if (graph.size() - count > MAX_TAIL) {
+            rebuild();
+        }
+    }
+
+    /** Note that the graph was cut down to its first SIZE commits,
+     *  discarding the index if it holds any of those dropped. */
+    void truncated(int size) {
+        table();
+        if (count > size) {
+            clear();
+        }
+    }
+
+    /** Unmap the index, so that it is read again. */
+    void reload() {
+        table = null;
+    }
+
+    /** Discard the index, so that it is rebuilt from the whole graph. */
+    void clear() {
+        file.delete();
+        table = null;
+    }
+
+    /** Write the index of all commits of the graph, merging the ones in the
+     *  tail into those already indexed. */
+    private void rebuild() {
+        List<String> tail = new ArrayList<>();
+        for (int k = count; k < graph.size(); k += 1) {
+            tail.add(graph.id(k));
+        }
+        List<Integer> tailPositions = new ArrayList<>();
+        for (int k = 0; k < tail.size(); k += 1) {
+            tailPositions.add(count + k);
+        }
+        tailPositions.sort((a, b) -> tail.get(a - count).compareTo(tail.get(b - count)));
+
+        int total = count + tail.size();
+        byte[] ids = new byte[total * ID_BYTES];
+        int[] positions = new int[total];
+        int[] fanout = new int[256];
+        for (int i = 0, j = 0, n = 0; n < total; n += 1) {
+            String next = j < tail.size() ? tail.get(tailPositions.get(j) - count) : null;
+            if (next == null || (i < count && compare(i, next) < 0)) {
+                table.get(IDS + i * ID_BYTES, ids, n * ID_BYTES, ID_BYTES);
+                positions[n] = position(i);
+                i += 1;
+            } else {
+                System.arraycopy(hexToBytes(next), 0, ids, n * ID_BYTES, ID_BYTES);
+                positions[n] = tailPositions.get(j);
+                j += 1;
+            }
+            fanout[ids[n * ID_BYTES] & 0xff] += 1;
+        }
+
+        try {
+            File temp = File.createTempFile("commit-index", ".tmp", file.getParentFile());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                     Files.newOutputStream(temp.toPath())))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(total);
+                int sum = 0;
+                for (int n : fanout) {
+                    sum += n;
+                    out.writeInt(sum);
+                }
+                out.write(ids);
+                for (int position : positions) {
+                    out.writeInt(position);
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        table = null;
+        table();
+    }
+
+    /** Return the id of the K-th indexed commit in sorted order. */
+    private String id(int k) {
+        byte[] id = new byte[ID_BYTES];
+        table.get(IDS + k * ID_BYTES, id);
+        return bytesToHex(id, 0, ID_BYTES);
+    }
+
+    /** Return the graph position of the K-th indexed commit. */
+    private int position(int k) {
+        return table.getInt(IDS + count * ID_BYTES + k * 4);
+    }
+
+    /** Compare the first PREFIX.length() hex digits of the K-th indexed id
+     *  with PREFIX. */
+    private int compare(int k, String prefix) {
+        int start = IDS + k * ID_BYTES;
+        for (int i = 0; i < prefix.length(); i += 1) {
+            int b = table.get(start + i / 2) & 0xff;
+            int digit = i % 2 == 0 ? b >> 4 : b & 0xf;
+            int cmp = Integer.compare(digit, Character.digit(prefix.charAt(i), 16));
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /** Map the index, writing it first if it does not exist. */
+    private void table() {
+        if (table != null) {
+            return;
+        }
+        if (!file.exists()) {
+            count = 0;
+            rebuild();
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.READ)) {
+            table = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        if (table.getInt(0) != MAGIC || table.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("bad commit index");
+        }
+        count = table.getInt(8);
+    }
+}
@@ -0,0 +1,235 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import static gitlet.Utils.*;
+
+/** A process that keeps a repository open and runs the commands sent to it
+ *  over the Unix domain socket .gitlet/daemon.sock, so that they do not pay
+ *  for starting a JVM and warming up its caches every time.  Main forwards
+ *  every command to the daemon while it is running.
+ *
+ *  A request holds the encoding of the client's standard output and the
+ *  command's arguments, each as a length-prefixed UTF-8 string.  The reply
+ *  is a sequence of frames, each a channel byte and a length-prefixed chunk
+ *  of standard output or standard error, ended by an EXIT frame whose
+ *  length is the exit status.  The client copies the chunks unchanged, so
+ *  its output is the same as if it had run the command itself.
+ *
+ *  Commands run one at a time, each holding the lock of the repository
+ *  like any other process, so the daemon only keeps others out while it
+ *  runs one.  The repository drops its caches when a command finds that
+ *  another process changed it; they are also dropped after a command
+ *  fails, since it may have left them half updated.
+ *
+ *  @author Han Liang
+ */
+class Daemon {
+
+    /** Frame ending a reply; its length is the exit status. */
+    private static final byte EXIT = 0;
+    /** Frame of standard output. */
+    private static final byte OUT = 1;
+    /** Frame of standard error. */
+    private static final byte ERR = 2;
+
+    /** Serve commands on GITLET until a 'daemon stop' request. */
+    static void serve(Gitlet gitlet) throws IOException {
+        Repository repository = gitlet.repository();
+        File socket = socket(repository.workDir);
+        if (socket.exists()) {
+            if (answers(socket)) {
+                throw error("A daemon is already running.");
+            }
+            socket.delete();
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(socket::delete));
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket.toPath()));
+            while (true) {
+                try (SocketChannel client = server.accept()) {
+                    DataInputStream in = new DataInputStream(Channels.newInputStream(client));
+                    Charset charset = Charset.forName(readString(in));
+                    String[] args = new String[in.readInt()];
+                    for (int k = 0; k < args.length; k += 1) {
+                        args[k] = readString(in);
+                    }
+                    DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(client)));
+                    if (args.length == 2 && args[0].equals("daemon") && args[1].equals("stop")) {
+                        writeFrame(out, EXIT, new byte[0], 0, 0);
+                        out.flush();
+                        break;
+                    }
+                    run(gitlet, args, out, charset);
+                    out.flush();
+                } catch (IOException excp) {
+                    // The client went away; serve the next one.
+                }
+            }
+        } finally {
+            socket.delete();
+        }
+    }
+
+    /** Run ARGS in the daemon of the repository in WORKDIR, copying its
+     *  output, and exit with its status.  Return without doing anything if
+     *  no daemon is running. */
+    static void forward(File workDir, String[] args) {
+        File socket = socket(workDir);
+        if (!socket.exists()) {
+            return;
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket.toPath()));
+        } catch (IOException excp) {
+            return;
+        }
+        try (channel) {
+            String encoding = System.getProperty("sun.stdout.encoding");
+            DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel)));
+            writeString(out, encoding != null ? encoding : Charset.defaultCharset().name());
+            out.writeInt(args.length);
+            for (String arg : args) {
+                writeString(out, arg);
+            }
+            out.flush();
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (true) {
+                byte kind = in.readByte();
+                int length = in.readInt();
+                if (kind == EXIT) {
+                    System.out.flush();
+                    System.exit(length);
+                }
+                PrintStream target = kind == OUT ? System.out : System.err;
+                while (length > 0) {
+                    int n = in.read(buffer, 0, Math.min(length, buffer.length));
+                    if (n < 0) {
+                        throw new IOException("daemon closed the connection");
+                    }
+                    target.write(buffer, 0, n);
+                    length -= n;
+                }
+            }
+        } catch (IOException excp) {
+            System.err.println("Lost the connection to the daemon: " + excp.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /** Run the command ARGS on GITLET, sending its output to OUT in frames
+     *  encoded with CHARSET, ending with its exit status. */
+    private static void run(Gitlet gitlet, String[] args, DataOutputStream out,
+                            Charset charset) {
+        PrintStream oldOut = System.out;
+        PrintStream oldErr = System.err;
+        PrintStream stdout = new PrintStream(new FrameStream(out, OUT), false, charset);
+        PrintStream stderr = new PrintStream(new FrameStream(out, ERR), false, charset);
+        System.setOut(stdout);
+        System.setErr(stderr);
+        int status = 0;
+        try {
+            Main.run(gitlet.repository().workDir, gitlet, args);
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+            gitlet.repository().invalidateCaches();
+        } catch (Exception | Error excp) {
+            System.err.print("Exception in thread \"main\" ");
+            excp.printStackTrace();
+            gitlet.repository().invalidateCaches();
+            status = 1;
+        } finally {
+            stdout.flush();
+            stderr.flush();
+            System.setOut(oldOut);
+            System.setErr(oldErr);
+        }
+        try {
+            writeFrame(out, EXIT, new byte[0], 0, status);
+        } catch (IOException excp) {
+            // The client went away; there is no one to tell.
+        }
+    }
+
+    /** Return true iff a daemon accepts connections on SOCKET, rather than
+     *  the file being left by one that died. */
+    private static boolean answers(File socket) {
+        try {
+            SocketChannel.open(UnixDomainSocketAddress.of(socket.toPath())).close();
+            return true;
+        } catch (IOException excp) {
+            return false;
+        }
+    }
+
+    /** Return the socket of the daemon of the repository in WORKDIR. */
+    private static File socket(File workDir) {
+        return join(workDir, ".gitlet", "daemon.sock");
+    }
+
+    /** Write a frame of kind KIND holding the LENGTH bytes of BYTES at
+     *  OFFSET to OUT; an EXIT frame holds STATUS instead. */
+    private static void writeFrame(DataOutputStream out, byte kind, byte[] bytes,
+                                   int offset, int length) throws IOException {
+        out.writeByte(kind);
+        out.writeInt(length);
+        if (kind != EXIT) {
+            out.write(bytes, offset, length);
+        }
+    }
+
+    /** Write S to OUT as its length in UTF-8 followed by its bytes. */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Read a string written by writeString from IN. */
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** An output stream sending what is written to it as frames of one
+     *  kind. */
+    private static class FrameStream extends OutputStream {
+        /** The stream the frames are written to. */
+        private final DataOutputStream out;
+        /** The kind of the frames. */
+        private final byte kind;
+
+        FrameStream(DataOutputStream out, byte kind) {
+            this.out = out;
+            this.kind = kind;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            writeFrame(out, kind, bytes, offset, length);
+        }
+    }
+}
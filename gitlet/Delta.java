@@ -0,0 +1,141 @@
+package gitlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+
+/** Binary deltas between two versions of a blob, used to store chains of
+ *  versions compactly inside pack files.  A delta is a sequence of COPY
+ *  instructions, which copy a range of the base, and INSERT instructions,
+ *  which carry literal bytes of the target.
+ *
+ *  @author Han Liang
+ */
+class Delta {
+
+    /** Instruction copying a range of the base: offset and length follow. */
+    private static final int COPY = 0;
+    /** Instruction inserting literal bytes: length and the bytes follow. */
+    private static final int INSERT = 1;
+    /** Size of the blocks of the base that are indexed for matching. */
+    private static final int BLOCK = 16;
+
+    /** Return a delta that turns BASE into TARGET. */
+    static byte[] create(byte[] base, byte[] target) {
+        HashMap<Integer, Integer> blocks = new HashMap<>();
+        for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+            blocks.putIfAbsent(hash(base, i), i);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeInt(out, target.length);
+        int literalStart = 0;
+        int i = 0;
+        while (i + BLOCK <= target.length) {
+            Integer match = blocks.get(hash(target, i));
+            if (match == null || !same(base, match, target, i, BLOCK)) {
+                i += 1;
+                continue;
+            }
+            int start = match;
+            int end = match + BLOCK;
+            int targetStart = i;
+            int targetEnd = i + BLOCK;
+            while (start > 0 && targetStart > literalStart
+                   && base[start - 1] == target[targetStart - 1]) {
+                start -= 1;
+                targetStart -= 1;
+            }
+            while (end < base.length && targetEnd < target.length
+                   && base[end] == target[targetEnd]) {
+                end += 1;
+                targetEnd += 1;
+            }
+            insert(out, target, literalStart, targetStart);
+            out.write(COPY);
+            writeInt(out, start);
+            writeInt(out, end - start);
+            literalStart = targetEnd;
+            i = targetEnd;
+        }
+        insert(out, target, literalStart, target.length);
+        return out.toByteArray();
+    }
+
+    /** Return the result of applying DELTA to BASE. */
+    static byte[] apply(byte[] base, byte[] delta) {
+        int[] pos = {0};
+        byte[] result = new byte[readInt(delta, pos)];
+        int length = 0;
+        while (pos[0] < delta.length) {
+            int op = delta[pos[0]++];
+            if (op == COPY) {
+                int offset = readInt(delta, pos);
+                int size = readInt(delta, pos);
+                System.arraycopy(base, offset, result, length, size);
+                length += size;
+            } else if (op == INSERT) {
+                int size = readInt(delta, pos);
+                System.arraycopy(delta, pos[0], result, length, size);
+                pos[0] += size;
+                length += size;
+            } else {
+                throw new IllegalArgumentException("corrupt delta");
+            }
+        }
+        if (length != result.length) {
+            throw new IllegalArgumentException("corrupt delta");
+        }
+        return result;
+    }
+
+    /** Write an INSERT instruction for TARGET[FROM..TO), if it is not empty. */
+    private static void insert(ByteArrayOutputStream out, byte[] target,
+                               int from, int to) {
+        if (from < to) {
+            out.write(INSERT);
+            writeInt(out, to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    /** Return a hash of the BLOCK bytes of DATA starting at START. */
+    private static int hash(byte[] data, int start) {
+        int h = 0;
+        for (int i = start; i < start + BLOCK; i += 1) {
+            h = 31 * h + data[i];
+        }
+        return h;
+    }
+
+    /** Return true iff the LENGTH bytes of A at I equal those of B at J. */
+    private static boolean same(byte[] a, int i, byte[] b, int j, int length) {
+        for (int k = 0; k < length; k += 1) {
+            if (a[i + k] != b[j + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Write the non-negative VALUE to OUT as a variable-length integer. */
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /** Read a variable-length integer from DATA at POS[0], advancing it. */
+    private static int readInt(byte[] data, int[] pos) {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = data[pos[0]++] & 0xff;
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
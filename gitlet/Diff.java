@@ -0,0 +1,587 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/** A line diff of two texts, written in the unified format.
+ *
+ *  The texts are byte buffers, usually mapped from files, and are never
+ *  copied: the lines common to the start and to the end of both are
+ *  skipped by comparing bytes, and only the lines between are indexed,
+ *  each as its offset and the number of its distinct contents.  The
+ *  differing lines are found with Myers' O(ND) algorithm, searching from
+ *  both ends at once in linear space.  A region that would cost more than
+ *  MAX_COST edits is split instead at the longest run of lines that occur
+ *  least often in it, as by Git's histogram diff, and each side is diffed
+ *  again.  The heap used grows with the number of lines indexed, not with
+ *  their length.
+ *
+ *  @author Han Liang
+ */
+class Diff {
+
+    /** Lines of context around each change. */
+    private static final int CONTEXT = 3;
+    /** Most edits searched for in a region before it is split at a run of
+     *  rare lines instead. */
+    private static final int MAX_COST = 1024;
+    /** Lines occurring more often than this in a region never anchor a
+     *  split. */
+    private static final int MAX_CHAIN = 64;
+    /** Number of leading bytes searched for a NUL to tell binary files. */
+    private static final int BINARY_PROBE = 8000;
+    /** Largest object read into memory; larger ones are spilled to a
+     *  temporary file and mapped. */
+    private static final int MAX_IN_MEMORY = 1 << 20;
+
+    /** The lines START to END of a text A, which lie from byte FROM to byte
+     *  TO, replaced by the lines START2 to END2 of a text B, which lie from
+     *  byte FROM2 to byte TO2.  Line numbers start at 0. */
+    record Edit(int start, int end, int from, int to,
+                int start2, int end2, int from2, int to2) {
+    }
+
+    /** The old and new texts. */
+    private final ByteBuffer a, b;
+    /** Number of common leading lines not indexed. */
+    private final int skipped;
+    /** The offsets of the lines indexed of each text, followed by the end
+     *  of the last. */
+    private final int[] linesA, linesB;
+    /** Number of lines indexed of each text. */
+    private final int n, m;
+    /** Number of common trailing lines indexed only as context, the lines
+     *  after them not being indexed. */
+    private final int tail;
+    /** The number of the contents of each line indexed; equal lines have
+     *  equal numbers. */
+    private final int[] idsA, idsB;
+    /** Number of distinct contents of the lines indexed. */
+    private int distinct;
+    /** By number of contents, its occurrences in the region anchor looks
+     *  at, and the last line of A having it there, or -1; allocated on first
+     *  use and reset after each. */
+    private int[] count, last;
+    /** The lines indexed that are removed from A and added in B. */
+    private final BitSet changedA = new BitSet(), changedB = new BitSet();
+    /** The furthest paths of the forward and backward searches. */
+    private final int[] forward = new int[2 * MAX_COST + 2];
+    private final int[] backward = new int[2 * MAX_COST + 2];
+
+    /** The diff of the texts A and B. */
+    private Diff(ByteBuffer a, ByteBuffer b) {
+        this.a = a;
+        this.b = b;
+        int start = 0;
+        int lines = 0;
+        int[] recent = new int[CONTEXT];
+        for (int end = commonLine(start); end >= 0; end = commonLine(start)) {
+            recent[lines % CONTEXT] = start;
+            lines += 1;
+            start = end;
+        }
+        int common = start;
+        if (lines > CONTEXT) {
+            start = recent[lines % CONTEXT];
+        } else {
+            start = 0;
+        }
+        skipped = Math.max(0, lines - CONTEXT);
+
+        int endA = a.limit(), endB = b.limit();
+        int suffix = 0;
+        int[] boundaries = new int[2 * (CONTEXT + 1)];
+        boundaries[0] = endA;
+        boundaries[1] = endB;
+        for (int i = endA, j = endB; i > common && j > common && a.get(i - 1) == b.get(j - 1); ) {
+            i -= 1;
+            j -= 1;
+            if ((i == common || a.get(i - 1) == '\n') && (j == common || b.get(j - 1) == '\n')) {
+                suffix += 1;
+                boundaries[2 * (suffix % (CONTEXT + 1))] = i;
+                boundaries[2 * (suffix % (CONTEXT + 1)) + 1] = j;
+            }
+        }
+        tail = suffix > CONTEXT ? CONTEXT : 0;
+        if (suffix > CONTEXT) {
+            endA = boundaries[2 * ((suffix - CONTEXT) % (CONTEXT + 1))];
+            endB = boundaries[2 * ((suffix - CONTEXT) % (CONTEXT + 1)) + 1];
+        }
+
+        linesA = split(a, start, endA);
+        linesB = split(b, start, endB);
+        n = linesA.length - 1;
+        m = linesB.length - 1;
+        idsA = new int[n];
+        idsB = new int[m];
+        number();
+    }
+
+    /** Write the unified diff of the texts OLD and NEW, labelled LABELOLD and
+     *  LABELNEW, to OUT, writing nothing if they are equal. */
+    static void write(String labelOld, ByteBuffer old, String labelNew, ByteBuffer now,
+                      OutputStream out) throws IOException {
+        if (binary(old) || binary(now)) {
+            if (!old.equals(now)) {
+                out.write(String.format("Binary files %s and %s differ\n", labelOld, labelNew)
+                          .getBytes(StandardCharsets.UTF_8));
+            }
+            return;
+        }
+        Diff diff = new Diff(old, now);
+        diff.compute();
+        diff.writeHunks(labelOld, labelNew, out);
+    }
+
+    /** Return the edits turning the text OLD into NOW, in order, separated
+     *  by at least one unchanged line. */
+    static List<Edit> edits(ByteBuffer old, ByteBuffer now) {
+        Diff diff = new Diff(old, now);
+        diff.compute();
+        List<Edit> result = new ArrayList<>();
+        int i = 0, j = 0;
+        while (i < diff.n || j < diff.m) {
+            if (i < diff.n && j < diff.m && !diff.changedA.get(i) && !diff.changedB.get(j)) {
+                i += 1;
+                j += 1;
+                continue;
+            }
+            int endA = Math.min(diff.changedA.nextClearBit(i), diff.n);
+            int endB = Math.min(diff.changedB.nextClearBit(j), diff.m);
+            result.add(new Edit(diff.skipped + i, diff.skipped + endA,
+                                diff.linesA[i], diff.linesA[endA],
+                                diff.skipped + j, diff.skipped + endB,
+                                diff.linesB[j], diff.linesB[endB]));
+            i = endA;
+            j = endB;
+        }
+        return result;
+    }
+
+    /** Return the contents of IN, held in memory if they are small and
+     *  otherwise mapped from a temporary file. */
+    static ByteBuffer load(InputStream in) throws IOException {
+        byte[] head = in.readNBytes(MAX_IN_MEMORY);
+        if (head.length < MAX_IN_MEMORY) {
+            return ByteBuffer.wrap(head);
+        }
+        File temp = File.createTempFile("diff", ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+                out.write(head);
+                in.transferTo(out);
+            }
+            return map(temp);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /** Return the contents of FILE, mapped. */
+    static ByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(file + " is too large to compare");
+            }
+            return size == 0 ? ByteBuffer.allocate(0)
+                : channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    /** Return true iff TEXT has a NUL among its first bytes. */
+    static boolean binary(ByteBuffer text) {
+        for (int k = 0, end = Math.min(text.limit(), BINARY_PROBE); k < end; k += 1) {
+            if (text.get(k) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return the end of the line at START if it is the same in both texts,
+     *  and otherwise -1. */
+    private int commonLine(int start) {
+        int k = start;
+        while (k < a.limit() && k < b.limit()) {
+            byte c = a.get(k);
+            if (c != b.get(k)) {
+                return -1;
+            }
+            k += 1;
+            if (c == '\n') {
+                return k;
+            }
+        }
+        return k > start && k == a.limit() && k == b.limit() ? k : -1;
+    }
+
+    /** Return the offsets of the lines of TEXT from START to END, followed
+     *  by END. */
+    private static int[] split(ByteBuffer text, int start, int end) {
+        int count = 0;
+        for (int k = start; k < end; k += 1) {
+            if (text.get(k) == '\n' || k == end - 1) {
+                count += 1;
+            }
+        }
+        int[] result = new int[count + 1];
+        count = 0;
+        for (int k = start; k < end; k += 1) {
+            if (k == start || text.get(k - 1) == '\n') {
+                result[count] = k;
+                count += 1;
+            }
+        }
+        result[count] = end;
+        return result;
+    }
+
+    /** Number the lines of both texts by their contents. */
+    private void number() {
+        int capacity = Integer.highestOneBit(Math.max((n + m) / 2 * 3, 16)) * 2;
+        int[] table = new int[capacity];
+        int[] owners = new int[16];
+        for (int side = 0; side < 2; side += 1) {
+            int count = side == 0 ? n : m;
+            int[] ids = side == 0 ? idsA : idsB;
+            for (int line = 0; line < count; line += 1) {
+                int owner = side == 0 ? line : ~line;
+                int slot = hash(owner) & (capacity - 1);
+                while (table[slot] != 0 && !equal(owners[table[slot] - 1], owner)) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                if (table[slot] == 0) {
+                    if (distinct == owners.length) {
+                        owners = Arrays.copyOf(owners, 2 * owners.length);
+                    }
+                    owners[distinct] = owner;
+                    distinct += 1;
+                    table[slot] = distinct;
+                }
+                ids[line] = table[slot] - 1;
+            }
+        }
+    }
+
+    /** Return the hash of the contents of LINE, a line of A if it is not
+     *  negative and otherwise line ~LINE of B. */
+    private int hash(int line) {
+        ByteBuffer text = line >= 0 ? a : b;
+        int[] lines = line >= 0 ? linesA : linesB;
+        int k = line >= 0 ? line : ~line;
+        int h = 0;
+        for (int p = lines[k]; p < lines[k + 1]; p += 1) {
+            h = 31 * h + text.get(p);
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /** Return true iff the lines LINE1 and LINE2, numbered as for hash, have
+     *  the same contents. */
+    private boolean equal(int line1, int line2) {
+        ByteBuffer text1 = line1 >= 0 ? a : b, text2 = line2 >= 0 ? a : b;
+        int[] lines1 = line1 >= 0 ? linesA : linesB, lines2 = line2 >= 0 ? linesA : linesB;
+        int k1 = line1 >= 0 ? line1 : ~line1, k2 = line2 >= 0 ? line2 : ~line2;
+        int length = lines1[k1 + 1] - lines1[k1];
+        if (length != lines2[k2 + 1] - lines2[k2]) {
+            return false;
+        }
+        for (int p = 0; p < length; p += 1) {
+            if (text1.get(lines1[k1] + p) != text2.get(lines2[k2] + p)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Mark the lines that differ, diffing one region of both texts at a
+     *  time.  A region is the first and last line of A and of B, exclusive
+     *  of the last, and whether it was split from one too costly for the
+     *  Myers search, in which case the search is only tried once the region
+     *  is small enough to be sure to finish. */
+    private void compute() {
+        Deque<int[]> regions = new ArrayDeque<>();
+        regions.push(new int[] {0, n, 0, m, 0});
+        while (!regions.isEmpty()) {
+            int[] region = regions.pop();
+            int a0 = region[0], a1 = region[1], b0 = region[2], b1 = region[3];
+            boolean costly = region[4] != 0;
+            while (a0 < a1 && b0 < b1 && idsA[a0] == idsB[b0]) {
+                a0 += 1;
+                b0 += 1;
+            }
+            while (a1 > a0 && b1 > b0 && idsA[a1 - 1] == idsB[b1 - 1]) {
+                a1 -= 1;
+                b1 -= 1;
+            }
+            if (a0 == a1 || b0 == b1) {
+                changedA.set(a0, a1);
+                changedB.set(b0, b1);
+                continue;
+            }
+            int[] middle = null;
+            if (!costly || a1 - a0 + b1 - b0 < 2 * MAX_COST) {
+                middle = bisect(a0, a1, b0, b1);
+            }
+            if (middle == null) {
+                middle = anchor(a0, a1, b0, b1);
+                costly = true;
+            }
+            if (middle.length == 0) {
+                changedA.set(a0, a1);
+                changedB.set(b0, b1);
+            } else {
+                int flag = costly ? 1 : 0;
+                regions.push(new int[] {middle[middle.length - 2], a1,
+                                        middle[middle.length - 1], b1, flag});
+                regions.push(new int[] {a0, middle[0], b0, middle[1], flag});
+            }
+        }
+        slide(changedA, idsA, n - tail);
+        slide(changedB, idsB, m - tail);
+    }
+
+    /** Move each run of the lines marked in CHANGED, among the first COUNT
+     *  of those numbered IDS, as far down as the equal lines after it let
+     *  it go without passing line COUNT, merging it with the runs it meets.  The unchanged lines keep
+     *  their contents, so the edit stays valid, and the same change comes
+     *  out at the same place whichever way the search found it, as a merge
+     *  comparing two edits of one text needs. */
+    private static void slide(BitSet changed, int[] ids, int count) {
+        for (int start = changed.nextSetBit(0); start >= 0 && start < count;
+             start = changed.nextSetBit(start)) {
+            int end = changed.nextClearBit(start);
+            while (end < count && ids[start] == ids[end]) {
+                changed.clear(start);
+                changed.set(end);
+                start += 1;
+                end = changed.nextClearBit(end);
+            }
+            start = end;
+        }
+    }
+
+    /** Return the point {x, y} of A and B through which a shortest edit of
+     *  the region A0 to A1 of A and B0 to B1 of B passes, found by Myers'
+     *  search from both ends, or an empty array if the region has no line
+     *  in common.  Return null if the edit is longer than MAX_COST. */
+    private int[] bisect(int a0, int a1, int b0, int b1) {
+        int lengthA = a1 - a0, lengthB = b1 - b0;
+        int maxD = Math.min((lengthA + lengthB + 1) / 2, MAX_COST);
+        int offset = maxD;
+        int size = 2 * maxD + 2;
+        Arrays.fill(forward, 0, size, -1);
+        Arrays.fill(backward, 0, size, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = lengthA - lengthB;
+        boolean front = delta % 2 != 0;
+        int k1start = 0, k1end = 0, k2start = 0, k2end = 0;
+        for (int d = 0; d < maxD; d += 1) {
+            for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
+                int k1Offset = offset + k1;
+                int x1 = k1 == -d || k1 != d && forward[k1Offset - 1] < forward[k1Offset + 1]
+                    ? forward[k1Offset + 1] : forward[k1Offset - 1] + 1;
+                int y1 = x1 - k1;
+                while (x1 < lengthA && y1 < lengthB && idsA[a0 + x1] == idsB[b0 + y1]) {
+                    x1 += 1;
+                    y1 += 1;
+                }
+                forward[k1Offset] = x1;
+                if (x1 > lengthA) {
+                    k1end += 2;
+                } else if (y1 > lengthB) {
+                    k1start += 2;
+                } else if (front) {
+                    int k2Offset = offset + delta - k1;
+                    if (k2Offset >= 0 && k2Offset < size && backward[k2Offset] != -1
+                        && x1 >= lengthA - backward[k2Offset]) {
+                        return new int[] {a0 + x1, b0 + y1};
+                    }
+                }
+            }
+            for (int k2 = -d + k2start; k2 <= d - k2end; k2 += 2) {
+                int k2Offset = offset + k2;
+                int x2 = k2 == -d || k2 != d && backward[k2Offset - 1] < backward[k2Offset + 1]
+                    ? backward[k2Offset + 1] : backward[k2Offset - 1] + 1;
+                int y2 = x2 - k2;
+                while (x2 < lengthA && y2 < lengthB
+                       && idsA[a1 - x2 - 1] == idsB[b1 - y2 - 1]) {
+                    x2 += 1;
+                    y2 += 1;
+                }
+                backward[k2Offset] = x2;
+                if (x2 > lengthA) {
+                    k2end += 2;
+                } else if (y2 > lengthB) {
+                    k2start += 2;
+                } else if (!front) {
+                    int k1Offset = offset + delta - k2;
+                    if (k1Offset >= 0 && k1Offset < size && forward[k1Offset] != -1) {
+                        int x1 = forward[k1Offset];
+                        int y1 = offset + x1 - k1Offset;
+                        if (x1 >= lengthA - x2) {
+                            return new int[] {a0 + x1, b0 + y1};
+                        }
+                    }
+                }
+            }
+        }
+        return maxD < MAX_COST ? new int[0] : null;
+    }
+
+    /** Return the longest run of lines common to the region A0 to A1 of A
+     *  and B0 to B1 of B among those whose rarest line occurs least often
+     *  in A, as {x0, y0, x1, y1}, its first lines in A and B followed by the
+     *  ends, or an empty array if every common line is too frequent. */
+    private int[] anchor(int a0, int a1, int b0, int b1) {
+        if (count == null) {
+            count = new int[distinct];
+            last = new int[distinct];
+            Arrays.fill(last, -1);
+        }
+        int[] previous = new int[a1 - a0];
+        for (int i = a0; i < a1; i += 1) {
+            previous[i - a0] = last[idsA[i]];
+            last[idsA[i]] = i;
+            count[idsA[i]] += 1;
+        }
+        int bestCount = MAX_CHAIN + 1;
+        int bestA = 0, bestB = 0, bestLength = 0;
+        for (int j = b0; j < b1; ) {
+            int id = idsB[j];
+            int next = j + 1;
+            if (count[id] > 0 && count[id] <= Math.min(bestCount, MAX_CHAIN)) {
+                for (int i = last[id]; i >= 0; i = previous[i - a0]) {
+                    int s = i, t = j;
+                    while (s > a0 && t > b0 && idsA[s - 1] == idsB[t - 1]) {
+                        s -= 1;
+                        t -= 1;
+                    }
+                    int e = i + 1, f = j + 1;
+                    while (e < a1 && f < b1 && idsA[e] == idsB[f]) {
+                        e += 1;
+                        f += 1;
+                    }
+                    int rarest = count[id];
+                    for (int k = s; k < e; k += 1) {
+                        rarest = Math.min(rarest, count[idsA[k]]);
+                    }
+                    if (rarest < bestCount || rarest == bestCount && e - s > bestLength) {
+                        bestCount = rarest;
+                        bestA = s;
+                        bestB = t;
+                        bestLength = e - s;
+                    }
+                    next = Math.max(next, f);
+                }
+            }
+            j = next;
+        }
+        for (int i = a0; i < a1; i += 1) {
+            count[idsA[i]] = 0;
+            last[idsA[i]] = -1;
+        }
+        return bestLength == 0 ? new int[0]
+            : new int[] {bestA, bestB, bestA + bestLength, bestB + bestLength};
+    }
+
+    /** Write the lines marked as changed to OUT as hunks of a unified diff,
+     *  headed by LABELOLD and LABELNEW, unless none are. */
+    private void writeHunks(String labelOld, String labelNew, OutputStream out)
+        throws IOException {
+        int i = 0, j = 0;
+        boolean headed = false;
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (true) {
+            while (i < n && j < m && !changedA.get(i) && !changedB.get(j)) {
+                i += 1;
+                j += 1;
+            }
+            if (i >= n && j >= m) {
+                return;
+            }
+            if (!headed) {
+                out.write(String.format("--- %s\n+++ %s\n", labelOld, labelNew)
+                          .getBytes(StandardCharsets.UTF_8));
+                headed = true;
+            }
+            int startA = Math.max(0, i - CONTEXT), startB = Math.max(0, j - CONTEXT);
+            int endA = i, endB = j;
+            while (true) {
+                endA = Math.min(changedA.nextClearBit(endA), n);
+                endB = Math.min(changedB.nextClearBit(endB), m);
+                int gap = 0;
+                while (gap <= 2 * CONTEXT && endA + gap < n && endB + gap < m
+                       && !changedA.get(endA + gap) && !changedB.get(endB + gap)) {
+                    gap += 1;
+                }
+                if (gap > 2 * CONTEXT || endA + gap >= n && endB + gap >= m) {
+                    break;
+                }
+                endA += gap;
+                endB += gap;
+            }
+            int stopA = Math.min(n, endA + CONTEXT), stopB = Math.min(m, endB + CONTEXT);
+            out.write(String.format("@@ -%s +%s @@\n", range(startA, stopA), range(startB, stopB))
+                      .getBytes(StandardCharsets.UTF_8));
+            int x = startA, y = startB;
+            while (x < stopA || y < stopB) {
+                if (x < stopA && changedA.get(x)) {
+                    writeLine('-', a, linesA, x, out, buffer);
+                    x += 1;
+                } else if (y < stopB && changedB.get(y)) {
+                    writeLine('+', b, linesB, y, out, buffer);
+                    y += 1;
+                } else {
+                    writeLine(' ', a, linesA, x, out, buffer);
+                    x += 1;
+                    y += 1;
+                }
+            }
+            i = endA;
+            j = endB;
+        }
+    }
+
+    /** Return the range of the lines from START to STOP, numbered from the
+     *  first indexed, as a hunk header gives it. */
+    private String range(int start, int stop) {
+        int length = stop - start;
+        int first = skipped + start + (length == 0 ? 0 : 1);
+        return length == 1 ? Integer.toString(first) : first + "," + length;
+    }
+
+    /** Write line K of TEXT, whose lines start at LINES, to OUT preceded by
+     *  MARK, copying through BUFFER. */
+    private static void writeLine(char mark, ByteBuffer text, int[] lines, int k,
+                                  OutputStream out, byte[] buffer) throws IOException {
+        out.write(mark);
+        int end = lines[k + 1];
+        for (int p = lines[k]; p < end; ) {
+            int length = Math.min(buffer.length, end - p);
+            text.get(p, buffer, 0, length);
+            out.write(buffer, 0, length);
+            p += length;
+        }
+        if (text.get(end - 1) != '\n') {
+            out.write("\n\\ No newline at end of file\n".getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package gitlet;
+
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/** An open Gitlet repository, for running commands from Java rather than
+ *  from the command line.  Each method runs the command of the same name
+ *  and returns its result instead of printing it; a command that fails
+ *  throws a GitletException holding the message gitlet.Main would print,
+ *  and nothing calls System.exit.  Any number of repositories may be open
+ *  at once, but each must only be used by one thread at a time.
+ *
+ *  Other processes may use the repository at the same time.  Commands
+ *  that only read it, or only create or delete branches, hold its lock
+ *  shared and run side by side; the others hold it exclusively.  Refs and
+ *  HEAD are read again by every command, and the caches are kept between
+ *  commands unless another process changed the repository meanwhile.
+ *
+ *  @author Han Liang
+ */
+public final class Gitlet {
+
+    /** A commit as listed by log: its id, the ids of its parents, the
+     *  second of which is null unless it is a merge, its date and its
+     *  message. */
+    public record LogEntry(String id, String parent, String secondParent,
+                           Date date, String message) {
+    }
+
+    /** Which commits log and globalLog list: at most LIMIT, or all if it
+     *  is negative; only those made no earlier than SINCE and no later than
+     *  UNTIL, unless these are null; only those whose message GREP finds a
+     *  match in, unless it is null; and only those changing the file or
+     *  directory at PATH from their first parent, unless it is null. */
+    public record LogFilter(int limit, Date since, Date until, Pattern grep, String path) {
+        /** Every commit. */
+        public static final LogFilter ALL = new LogFilter(-1, null, null, null, null);
+    }
+
+    /** The state reported by status: the current branch, all branches,
+     *  the files staged for addition and for removal, the tracked files
+     *  modified or deleted without being staged, and the untracked files,
+     *  each sorted. */
+    public record Status(String branch, List<String> branches,
+                         List<String> staged, List<String> removed,
+                         List<String> modified, List<String> deleted,
+                         List<String> untracked) {
+    }
+
+    /** How a merge ended. */
+    public enum MergeResult {
+        /** The current branch was moved to the given one. */
+        FAST_FORWARDED,
+        /** The given branch was already merged; nothing changed. */
+        ALREADY_MERGED,
+        /** A merge commit was made. */
+        MERGED,
+        /** A merge commit was made, with conflicts left between markers. */
+        CONFLICTED
+    }
+
+    /** The result of merge-tree: the id of the merged tree, and the files
+     *  it leaves with conflicts, sorted. */
+    public record MergeTree(String tree, List<String> conflicts) {
+    }
+
+    /** What gc deleted: the numbers of commits, trees and blobs, and the
+     *  bytes they took on disk. */
+    public record Collected(int commits, int trees, int blobs, long bytes) {
+    }
+
+    /** Locking of commands that only read the repository or move its
+     *  branches. */
+    private static final boolean SHARED = false;
+    /** Locking of the other commands. */
+    private static final boolean EXCLUSIVE = true;
+
+    /** The repository operated on. */
+    private final Repository repository;
+
+    /** A Gitlet over REPOSITORY. */
+    private Gitlet(Repository repository) {
+        this.repository = repository;
+    }
+
+    /** Create a repository in the directory DIR and return it. */
+    public static Gitlet init(Path dir) {
+        Gitlet gitlet = new Gitlet(new Repository(dir.toFile()));
+        gitlet.run(EXCLUSIVE, Repository::setupPersistence);
+        return gitlet;
+    }
+
+    /** Return the repository whose working directory is DIR, recovering
+     *  from any crash recorded in its journal and bringing its format up to
+     *  date. */
+    public static Gitlet open(Path dir) {
+        Repository repository = new Repository(dir.toFile());
+        repository.repoExist();
+        return new Gitlet(repository);
+    }
+
+    /** Return the working directory. */
+    public Path root() {
+        return repository.workDir.toPath();
+    }
+
+    /** Stage the files at PATHS, relative to the working directory, and
+     *  every file under those that are directories. */
+    public void add(String... paths) {
+        run(EXCLUSIVE, repository -> repository.add(paths));
+    }
+
+    /** Commit the staged files with MESSAGE and return the new commit's id. */
+    public String commit(String message) {
+        return call(EXCLUSIVE, repository -> repository.newCommit(message));
+    }
+
+    /** Unstage PATH, and stage it for removal if it is tracked. */
+    public void rm(String path) {
+        run(EXCLUSIVE, repository -> repository.remove(path));
+    }
+
+    /** Return the commits from HEAD back to the initial one, following
+     *  first parents. */
+    public List<LogEntry> log() {
+        List<LogEntry> result = new ArrayList<>();
+        log(LogFilter.ALL, result::add);
+        return result;
+    }
+
+    /** Call ACTION with each commit FILTER lets through from HEAD back to
+     *  the initial one, following first parents, as soon as it is read. */
+    public void log(LogFilter filter, Consumer<LogEntry> action) {
+        run(SHARED, repository -> repository.log(filter, action));
+    }
+
+    /** Return every commit ever made, in no particular order. */
+    public List<LogEntry> globalLog() {
+        List<LogEntry> result = new ArrayList<>();
+        globalLog(LogFilter.ALL, result::add);
+        return result;
+    }
+
+    /** Call ACTION with every commit ever made that FILTER lets through,
+     *  in no particular order, as soon as it is read. */
+    public void globalLog(LogFilter filter, Consumer<LogEntry> action) {
+        run(SHARED, repository -> repository.globalLog(filter, action));
+    }
+
+    /** Write the version of PATH in the HEAD commit to the working
+     *  directory. */
+    public void checkoutFile(String path) {
+        run(EXCLUSIVE, repository -> repository.checkoutFile(path, repository.refHEADCommit()));
+    }
+
+    /** Write the version of PATH in the commit COMMITID, which may be
+     *  abbreviated, to the working directory. */
+    public void checkoutFile(String commitId, String path) {
+        run(EXCLUSIVE, repository -> repository.checkoutFile(path, commitId));
+    }
+
+    /** Check out the branch BRANCH and make it the current one. */
+    public void checkout(String branch) {
+        run(EXCLUSIVE, repository -> repository.checkoutBranch(branch));
+    }
+
+    /** Return the status of the repository. */
+    public Status status() {
+        return call(SHARED, Repository::status);
+    }
+
+    /** Create the branch BRANCH at the HEAD commit. */
+    public void branch(String branch) {
+        run(SHARED, repository -> repository.branch(branch));
+    }
+
+    /** Delete the branch BRANCH. */
+    public void rmBranch(String branch) {
+        run(SHARED, repository -> repository.rmBranch(branch));
+    }
+
+    /** Check out the commit COMMITID and move the current branch to it. */
+    public void reset(String commitId) {
+        run(EXCLUSIVE, repository -> repository.reset(commitId));
+    }
+
+    /** Merge the branch BRANCH into the current one. */
+    public MergeResult merge(String branch) {
+        return call(EXCLUSIVE, repository -> repository.merge(branch));
+    }
+
+    /** Return the id of the best common ancestor of the commits named by
+     *  NAME1 and NAME2, each a branch or a commit id, or null if they have
+     *  none. */
+    public String mergeBase(String name1, String name2) {
+        return call(SHARED, repository -> repository.mergeBase(name1, name2));
+    }
+
+    /** Return the merge of the commits named by NAME1 and NAME2, each a
+     *  branch or a commit id, against their best common ancestor.  The
+     *  merged files and tree are stored, but neither the working directory,
+     *  the index nor any branch is changed. */
+    public MergeTree mergeTree(String name1, String name2) {
+        return call(EXCLUSIVE, repository -> {
+            TreeMerge.Result result = repository.mergeTree(name1, name2);
+            return new MergeTree(result.tree(), List.copyOf(result.conflicts()));
+        });
+    }
+
+    /** Write the differences between two versions of the files to OUT as
+     *  a unified diff: those of the commits named by NAME1 and NAME2 if
+     *  both are given, those of NAME1 and of the working directory if only
+     *  it is, and those staged and of the working directory if neither is.
+     *  Each name is a branch or a commit id, or null.  If PATH is not null,
+     *  only the file at PATH, or the files under it, are compared. */
+    public void diff(String name1, String name2, String path, OutputStream out) {
+        run(SHARED, repository -> repository.diff(name1, name2, path, out));
+    }
+
+    /** Run COMMANDS, which use this repository, as one transaction: their
+     *  changes are written to disk together, with one fsync, when the last
+     *  one finishes.  If any of them fails, the changes of all those run
+     *  so far are rolled back and the exception is thrown on. */
+    public void batch(Runnable commands) {
+        repository.begin(EXCLUSIVE);
+        try {
+            commands.run();
+        } catch (RuntimeException | Error excp) {
+            repository.abort();
+            throw excp;
+        }
+        repository.commit();
+    }
+
+    /** Pack the loose objects. */
+    public void repack() {
+        run(EXCLUSIVE, repository -> repository.repack());
+    }
+
+    /** Delete the commits, trees and blobs that no branch, HEAD or staged
+     *  file can reach, unless they were stored less than GRACE ago, and
+     *  return what was deleted.  Other commands wait for it to finish, and
+     *  it waits for those already running.  It must not run inside batch. */
+    public Collected gc(Duration grace) {
+        return call(EXCLUSIVE, repository -> repository.gc(grace.toMillis()));
+    }
+
+    /** Return the repository operated on. */
+    Repository repository() {
+        return repository;
+    }
+
+    /** Run COMMAND as one transaction, holding the lock exclusively if
+     *  EXCLUSIVE. */
+    private void run(boolean exclusive, Consumer<Repository> command) {
+        call(exclusive, repository -> {
+            command.accept(repository);
+            return null;
+        });
+    }
+
+    /** Run COMMAND as one transaction, holding the lock exclusively if
+     *  EXCLUSIVE, and return its result.  If it fails, its changes to the
+     *  repository are rolled back. */
+    private <T> T call(boolean exclusive, Function<Repository, T> command) {
+        repository.begin(exclusive);
+        T result;
+        try {
+            result = command.apply(repository);
+        } catch (RuntimeException | Error excp) {
+            repository.abort();
+            throw excp;
+        }
+        repository.commit();
+        return result;
+    }
+}
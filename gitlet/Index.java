@@ -0,0 +1,185 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/** The staging area of a repository, kept in a single binary file sorted by
+ *  path.  Each entry records a path staged for addition or for removal, the
+ *  id of its blob, and the size and modification time of the working file
+ *  it was staged from.  The blobs themselves are already in the object
+ *  store, so committing only has to apply the entries to the parent's tree.
+ *  The file is replaced through the journal on every write.
+ *
+ *  @author Han Liang
+ */
+class Index {
+
+    /** Magic number at the start of the file. */
+    private static final int MAGIC = 0x47494458;
+    /** Version of the file format. */
+    private static final int VERSION = 1;
+
+    /** State of an entry staged for addition. */
+    static final byte ADDED = 1;
+    /** State of an entry staged for removal. */
+    static final byte REMOVED = 2;
+
+    /** An entry of the index. */
+    static class Entry {
+        /** Path of the file. */
+        final String path;
+        /** Id of the blob added, or of the blob removed. */
+        final String blob;
+        /** Size and modification time of the working file when staged. */
+        final long size;
+        final long mtime;
+        /** ADDED or REMOVED. */
+        final byte state;
+
+        Entry(String path, String blob, long size, long mtime, byte state) {
+            this.path = path;
+            this.blob = blob;
+            this.size = size;
+            this.mtime = mtime;
+            this.state = state;
+        }
+    }
+
+    /** The file holding the index. */
+    private final File file;
+    /** The journal the file is written through. */
+    private final Journal journal;
+    /** The entries by path, read on first use. */
+    private TreeMap<String, Entry> entries;
+
+    /** The staging area stored in FILE, written through JOURNAL. */
+    Index(File file, Journal journal) {
+        this.file = file;
+        this.journal = journal;
+    }
+
+    /** Return the entry of PATH, or null if it is not staged. */
+    Entry get(String path) {
+        return entries().get(path);
+    }
+
+    /** Return true iff nothing is staged. */
+    boolean isEmpty() {
+        return entries().isEmpty();
+    }
+
+    /** Return the paths staged for addition, in order. */
+    List<String> added() {
+        return paths(ADDED);
+    }
+
+    /** Return the paths staged for removal, in order. */
+    List<String> removed() {
+        return paths(REMOVED);
+    }
+
+    /** Stage PATH for addition as BLOB, staged from WORKINGFILE. */
+    void add(String path, String blob, File workingFile) {
+        entries().put(path, new Entry(path, blob, workingFile.length(),
+                                      workingFile.lastModified(), ADDED));
+    }
+
+    /** Stage PATH, currently tracked as BLOB, for removal. */
+    void remove(String path, String blob) {
+        entries().put(path, new Entry(path, blob, 0, 0, REMOVED));
+    }
+
+    /** Unstage PATH.  Return true iff it was staged. */
+    boolean unstage(String path) {
+        return entries().remove(path) != null;
+    }
+
+    /** Unstage everything. */
+    void clear() {
+        entries().clear();
+    }
+
+    /** Return the staged changes as a map from paths to the ids of the blobs
+     *  added, or to null for the paths removed. */
+    HashMap<String, String> changes() {
+        HashMap<String, String> result = new HashMap<>();
+        for (Entry entry : entries().values()) {
+            result.put(entry.path, entry.state == ADDED ? entry.blob : null);
+        }
+        return result;
+    }
+
+    /** Forget the entries read, so that they are read again. */
+    void reload() {
+        entries = null;
+    }
+
+    /** Write the index through the journal. */
+    void write() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries().size());
+            for (Entry entry : entries().values()) {
+                out.writeUTF(entry.path);
+                out.write(hexToBytes(entry.blob));
+                out.writeLong(entry.size);
+                out.writeLong(entry.mtime);
+                out.writeByte(entry.state);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        journal.write(file, bytes.toByteArray());
+    }
+
+    /** Return the paths of the entries in STATE. */
+    private List<String> paths(byte state) {
+        List<String> result = new ArrayList<>();
+        for (Entry entry : entries().values()) {
+            if (entry.state == state) {
+                result.add(entry.path);
+            }
+        }
+        return result;
+    }
+
+    /** Return the entries, reading them if needed. */
+    private TreeMap<String, Entry> entries() {
+        if (entries != null) {
+            return entries;
+        }
+        entries = new TreeMap<>();
+        byte[] contents = journal.read(file);
+        if (contents == null) {
+            return entries;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IllegalArgumentException("bad index file");
+            }
+            byte[] blob = new byte[UID_LENGTH / 2];
+            for (int n = in.readInt(); n > 0; n -= 1) {
+                String path = in.readUTF();
+                in.readFully(blob);
+                Entry entry = new Entry(path, bytesToHex(blob, 0, blob.length),
+                                        in.readLong(), in.readLong(), in.readByte());
+                entries.put(path, entry);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return entries;
+    }
+}
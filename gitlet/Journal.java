@@ -0,0 +1,583 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+import static gitlet.Utils.*;
+
+/** The write-ahead journal of a repository, .gitlet/journal, which makes
+ *  each command atomic and durable with a single fsync of the journal.
+ *
+ *  While a command runs, the files it would write under .gitlet, such as
+ *  HEAD, the branches and the index, are kept in memory and read back from
+ *  there.  New objects are written to the object stores at once, since
+ *  nothing refers to them yet, and only their names are kept.  When the
+ *  command succeeds, the new objects and their directories are forced to
+ *  disk, the files kept are appended to the journal as one record with a
+ *  checksum, the journal alone is forced to disk, and only then are the
+ *  files written, without forcing them.  When it fails, nothing is written
+ *  and the objects it created are deleted.
+ *
+ *  The journal thus holds every change made since the files were last
+ *  forced.  Opening the repository replays it: files that differ from
+ *  their last version in the journal, as after a crash, are written again,
+ *  and a record cut short by a crash is dropped, which rolls its command
+ *  back.  Once the journal grows past CHECKPOINT_SIZE, the files it names
+ *  are forced and it is emptied.
+ *
+ *  Commands may be grouped into one transaction by nesting begin and
+ *  commit, which only force the objects and write the journal at the
+ *  outermost commit.
+ *
+ *  The journal also keeps processes from interfering.  Each command holds
+ *  LOCK, on .gitlet/lock, exclusively if it changes the staging area or
+ *  HEAD and shared otherwise, so that commands that only read or only move
+ *  branches run side by side.  A file is changed by writing its
+ *  new contents to FILE.lock, created only if absent, and renaming that
+ *  over the file once the record is written, so no two transactions change
+ *  a file at once.  A file the transaction read is only changed if it still
+ *  holds what was read, which makes every update of a branch a
+ *  compare-and-swap: of two processes moving the same branch, the second
+ *  fails instead of silently undoing the first.
+ *
+ *  The transactions of a process are shared by its threads, so that the
+ *  workers storing objects in parallel record them in the command that
+ *  runs them; every change to the transaction is synchronized.
+ *
+ *  @author Han Liang
+ */
+class Journal {
+
+    /** Magic number at the start of a record. */
+    private static final int MAGIC = 0x474a524e;
+    /** Kind of an entry replacing a file. */
+    private static final byte WRITE = 0;
+    /** Kind of an entry deleting a file. */
+    private static final byte DELETE = 1;
+    /** Kind of an entry holding a loose object as stored, which only
+     *  journals written before objects were forced at commit hold. */
+    private static final byte OBJECT = 2;
+    /** Size past which the journal is emptied after a commit. */
+    private static final long CHECKPOINT_SIZE = 1 << 22;
+    /** Suffix of the file holding the new contents of a file being
+     *  changed. */
+    private static final String LOCK_SUFFIX = ".lock";
+
+    /** The directory whose files are journaled. */
+    private final File dir;
+    /** The journal file. */
+    private final File file;
+    /** Held by every command, exclusively by those changing more than the
+     *  branches, from the start of its transaction to the end. */
+    final Lock lock;
+    /** Held while appending to the journal. */
+    private final Lock appending;
+    /** The files to write, by path relative to DIR, with null for the files
+     *  to delete, in the order they were changed. */
+    private final LinkedHashMap<String, byte[]> files = new LinkedHashMap<>();
+    /** The loose objects created, by path relative to DIR. */
+    private final LinkedHashSet<String> objects = new LinkedHashSet<>();
+    /** The contents of the files read from disk by the current
+     *  transaction, by path relative to DIR, with null for missing files. */
+    private final HashMap<String, byte[]> seen = new HashMap<>();
+    /** Number of transactions begun and not yet committed or aborted. */
+    private int depth;
+
+    /** The journal of the files in DIR, kept in DIR/journal. */
+    Journal(File dir) {
+        this.dir = dir;
+        this.file = join(dir, "journal");
+        this.lock = Lock.on(join(dir, "lock"), 0);
+        this.appending = Lock.on(join(dir, "lock"), 1);
+    }
+
+    /** Begin a transaction, nested in any already begun.  The lock must be
+     *  held.  Return true iff it is the outermost. */
+    synchronized boolean begin() {
+        depth += 1;
+        return depth == 1;
+    }
+
+    /** Return true iff a transaction is under way. */
+    synchronized boolean active() {
+        return depth > 0;
+    }
+
+    /** Return true iff the current transaction is nested in another. */
+    synchronized boolean nested() {
+        return depth > 1;
+    }
+
+    /** Commit the innermost transaction; if it is the outermost, write its
+     *  changes to the journal, force it, and apply them.  Throw a
+     *  GitletException, rolling the transaction back, if another process
+     *  changed a file that it read and changes. */
+    synchronized void commit() {
+        depth -= 1;
+        if (depth > 0) {
+            return;
+        }
+        try {
+            if (!files.isEmpty() || !objects.isEmpty()) {
+                write();
+            }
+            if (lock.heldExclusively() && file.length() > CHECKPOINT_SIZE) {
+                checkpoint();
+            }
+        } finally {
+            files.clear();
+            objects.clear();
+            seen.clear();
+        }
+    }
+
+    /** Abort the innermost transaction, dropping the changes of the
+     *  outermost one and deleting the objects it created.  The caller must
+     *  forget anything it read from them. */
+    synchronized void abort() {
+        depth = Math.max(0, depth - 1);
+        discard();
+        files.clear();
+        objects.clear();
+        if (depth == 0) {
+            seen.clear();
+        }
+    }
+
+    /** Replace FILE, under the journaled directory, by CONTENTS. */
+    void write(File file, byte[] contents) {
+        change(file, contents);
+    }
+
+    /** Delete FILE, under the journaled directory. */
+    void delete(File file) {
+        change(file, null);
+    }
+
+    /** Record that the loose object FILE was just created, to be forced
+     *  at the outermost commit or deleted on abort. */
+    synchronized void created(File file) {
+        begin();
+        objects.add(path(file));
+        commit();
+    }
+
+    /** Return the contents of FILE as changed by the current transaction,
+     *  or null if it does not exist.  The transaction only changes FILE
+     *  later if it is still as read. */
+    synchronized byte[] read(File file) {
+        String path = path(file);
+        if (files.containsKey(path)) {
+            return files.get(path);
+        }
+        byte[] contents = contents(file);
+        if (depth > 0 && !seen.containsKey(path)) {
+            seen.put(path, contents);
+        }
+        return contents;
+    }
+
+    /** Return the names of the plain files in DIRECTORY as changed by the
+     *  current transaction, sorted. */
+    synchronized List<String> list(File directory) {
+        TreeSet<String> names = new TreeSet<>();
+        List<String> onDisk = plainFilenamesIn(directory);
+        if (onDisk != null) {
+            names.addAll(onDisk);
+        }
+        names.removeIf(name -> name.endsWith(LOCK_SUFFIX));
+        String prefix = path(directory) + "/";
+        for (Map.Entry<String, byte[]> entry : files.entrySet()) {
+            String path = entry.getKey();
+            if (path.startsWith(prefix) && path.indexOf('/', prefix.length()) < 0) {
+                if (entry.getValue() == null) {
+                    names.remove(path.substring(prefix.length()));
+                } else {
+                    names.add(path.substring(prefix.length()));
+                }
+            }
+        }
+        return new ArrayList<>(names);
+    }
+
+    /** Replay the journal, as when the repository is opened: delete the
+     *  lock files of changes that never finished and the objects whose
+     *  writing never finished, write again the files and
+     *  objects that differ from the journal, and drop a last record cut
+     *  short.  Return true iff anything was repaired or dropped, in which
+     *  case the journal is also checkpointed.  The lock must be held
+     *  exclusively. */
+    boolean recover() {
+        deleteLockFiles();
+        deleteTempObjects();
+        if (!file.isFile() || file.length() == 0) {
+            return false;
+        }
+        byte[] journal = readContents(file);
+        LinkedHashMap<String, byte[]> lastFiles = new LinkedHashMap<>();
+        LinkedHashMap<String, byte[]> lastObjects = new LinkedHashMap<>();
+        int end = decode(journal, lastFiles, lastObjects);
+        boolean repaired = end < journal.length;
+        for (Map.Entry<String, byte[]> entry : lastObjects.entrySet()) {
+            File object = join(dir, entry.getKey());
+            byte[] stored = entry.getValue();
+            if (stored != null && (!object.isFile() || object.length() != stored.length)) {
+                apply(entry.getKey(), stored);
+                repaired = true;
+            }
+        }
+        for (Map.Entry<String, byte[]> entry : lastFiles.entrySet()) {
+            File target = join(dir, entry.getKey());
+            byte[] contents = entry.getValue();
+            boolean current = contents == null ? !target.exists()
+                : target.isFile() && Arrays.equals(readContents(target), contents);
+            if (!current) {
+                apply(entry.getKey(), contents);
+                repaired = true;
+            }
+        }
+        if (repaired) {
+            checkpoint();
+        }
+        return repaired;
+    }
+
+    /** Force every file named in the journal, and the directories holding
+     *  them, to disk, then empty the journal.  The lock must be held
+     *  exclusively. */
+    void checkpoint() {
+        if (!file.isFile()) {
+            return;
+        }
+        LinkedHashMap<String, byte[]> lastFiles = new LinkedHashMap<>();
+        LinkedHashMap<String, byte[]> lastObjects = new LinkedHashMap<>();
+        decode(readContents(file), lastFiles, lastObjects);
+        TreeSet<File> dirs = new TreeSet<>();
+        for (String path : lastFiles.keySet()) {
+            force(join(dir, path));
+            dirs.add(join(dir, path).getParentFile());
+        }
+        for (String path : lastObjects.keySet()) {
+            force(join(dir, path));
+            dirs.add(join(dir, path).getParentFile());
+        }
+        for (File directory : dirs) {
+            force(directory);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(0);
+            channel.force(true);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Force the contents of FILE, which may be a directory, to disk,
+     *  ignoring it if it does not exist. */
+    static void force(File file) {
+        if (!file.exists()) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException excp) {
+            if (file.isFile()) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            // Some systems cannot open or force directories.
+        }
+    }
+
+    /** Record that FILE becomes CONTENTS, or is deleted if null. */
+    private synchronized void change(File file, byte[] contents) {
+        begin();
+        files.put(path(file), contents);
+        commit();
+    }
+
+    /** Write the changes of the current transaction: create the lock file
+     *  of each file changed, check that the files read still hold what was
+     *  read, force the objects created, append the record, then move the
+     *  lock files into place. */
+    private void write() {
+        List<String> locked = new ArrayList<>();
+        try {
+            for (Map.Entry<String, byte[]> entry : files.entrySet()) {
+                String path = entry.getKey();
+                File lockFile = lockFile(path);
+                lockFile.getParentFile().mkdirs();
+                try {
+                    Files.write(lockFile.toPath(),
+                                entry.getValue() == null ? new byte[0] : entry.getValue(),
+                                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                } catch (FileAlreadyExistsException excp) {
+                    throw error("%s is being changed by another process.", path);
+                }
+                locked.add(path);
+                if (seen.containsKey(path)
+                    && !Arrays.equals(seen.get(path), contents(join(dir, path)))) {
+                    throw error("%s was changed by another process.", path);
+                }
+            }
+            forceObjects();
+            if (!files.isEmpty()) {
+                append(encode());
+            }
+        } catch (IOException excp) {
+            unlock(locked);
+            discard();
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (RuntimeException | Error excp) {
+            unlock(locked);
+            discard();
+            throw excp;
+        }
+        for (Map.Entry<String, byte[]> entry : files.entrySet()) {
+            install(entry.getKey(), entry.getValue() != null);
+        }
+    }
+
+    /** Force the objects created by the current transaction, their shard
+     *  directories and the stores holding those, in parallel. */
+    private void forceObjects() {
+        TreeSet<File> dirs = new TreeSet<>();
+        for (String path : objects) {
+            File shard = join(dir, path).getParentFile();
+            dirs.add(shard);
+            dirs.add(shard.getParentFile());
+        }
+        objects.parallelStream().forEach(path -> force(join(dir, path)));
+        dirs.parallelStream().forEach(Journal::force);
+    }
+
+    /** Delete the lock files of the files at PATHS. */
+    private void unlock(List<String> paths) {
+        for (String path : paths) {
+            lockFile(path).delete();
+        }
+    }
+
+    /** Delete the objects created by the current transaction, unless the
+     *  lock is shared, when another process may have found them already
+     *  there and be about to refer to them. */
+    private void discard() {
+        if (lock.heldExclusively()) {
+            for (String path : objects) {
+                join(dir, path).delete();
+            }
+        }
+    }
+
+    /** Delete the lock files left in the journaled directory and the
+     *  directories directly in it by changes that never finished. */
+    private void deleteLockFiles() {
+        List<File> dirs = new ArrayList<>(List.of(dir));
+        File[] subdirs = dir.listFiles(File::isDirectory);
+        if (subdirs != null) {
+            dirs.addAll(Arrays.asList(subdirs));
+        }
+        for (File directory : dirs) {
+            File[] stale = directory.listFiles(
+                (parent, name) -> name.endsWith(LOCK_SUFFIX));
+            if (stale != null) {
+                for (File lockFile : stale) {
+                    lockFile.delete();
+                }
+            }
+        }
+    }
+
+    /** Delete the objects left in the temporary directories of the object
+     *  stores, directly in the journaled directory, by writes that never
+     *  finished.  No object is being written while the lock is held
+     *  exclusively. */
+    private void deleteTempObjects() {
+        File[] temps = dir.listFiles(
+            (parent, name) -> join(parent, name, ObjectStore.TEMP_DIR).isDirectory());
+        if (temps != null) {
+            for (File store : temps) {
+                File[] stale = join(store, ObjectStore.TEMP_DIR).listFiles();
+                if (stale != null) {
+                    for (File temp : stale) {
+                        temp.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    /** Return the lock file of the file at PATH. */
+    private File lockFile(String path) {
+        return join(dir, path + LOCK_SUFFIX);
+    }
+
+    /** Return the contents of FILE, or null if it does not exist. */
+    private static byte[] contents(File file) {
+        try {
+            return Files.readAllBytes(file.toPath());
+        } catch (NoSuchFileException excp) {
+            return null;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the path of FILE relative to the journaled directory. */
+    private String path(File file) {
+        return dir.toPath().relativize(file.toPath()).toString()
+            .replace(File.separatorChar, '/');
+    }
+
+    /** Write CONTENTS to the file at PATH, replacing it atomically, or
+     *  delete it if CONTENTS is null. */
+    private void apply(String path, byte[] contents) {
+        if (contents != null) {
+            lockFile(path).getParentFile().mkdirs();
+            writeContents(lockFile(path), contents);
+        }
+        install(path, contents != null);
+    }
+
+    /** Move the lock file of the file at PATH over it if REPLACE, and
+     *  otherwise delete both. */
+    private void install(String path, boolean replace) {
+        File target = join(dir, path);
+        if (!replace) {
+            target.delete();
+            lockFile(path).delete();
+            return;
+        }
+        try {
+            Files.move(lockFile(path).toPath(), target.toPath(),
+                       StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the record of the current transaction: the magic number, the
+     *  length and CRC-32 of the body, and the body, which holds the number
+     *  of entries and, for each, its kind, its path and, unless it deletes,
+     *  the length of its contents followed by them. */
+    private byte[] encode() {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(body)) {
+            out.writeInt(files.size());
+            for (Map.Entry<String, byte[]> entry : files.entrySet()) {
+                writeEntry(out, entry.getValue() == null ? DELETE : WRITE,
+                           entry.getKey(), entry.getValue());
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        byte[] bytes = body.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        ByteBuffer record = ByteBuffer.allocate(12 + bytes.length);
+        record.putInt(MAGIC);
+        record.putInt(bytes.length);
+        record.putInt((int) crc.getValue());
+        record.put(bytes);
+        return record.array();
+    }
+
+    /** Write the entry of kind KIND for PATH with CONTENTS to OUT. */
+    private static void writeEntry(DataOutputStream out, byte kind, String path,
+                                   byte[] contents) throws IOException {
+        out.writeByte(kind);
+        out.writeUTF(path);
+        if (kind != DELETE) {
+            out.writeInt(contents.length);
+            out.write(contents);
+        }
+    }
+
+    /** Read the records of JOURNAL, putting the last contents of each file
+     *  into FILES, with null for deleted files, and the objects into
+     *  OBJECTS.  Return the length of the records that are whole. */
+    private static int decode(byte[] journal, Map<String, byte[]> files,
+                              Map<String, byte[]> objects) {
+        ByteBuffer records = ByteBuffer.wrap(journal);
+        while (records.remaining() >= 12) {
+            int start = records.position();
+            int length = records.getInt(start + 4);
+            if (records.getInt(start) != MAGIC || length < 0
+                || length > records.remaining() - 12) {
+                return start;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(journal, start + 12, length);
+            if ((int) crc.getValue() != records.getInt(start + 8)) {
+                return start;
+            }
+            try (DataInputStream in = new DataInputStream(
+                     new ByteArrayInputStream(journal, start + 12, length))) {
+                for (int n = in.readInt(); n > 0; n -= 1) {
+                    byte kind = in.readByte();
+                    String path = in.readUTF();
+                    byte[] contents = null;
+                    if (kind != DELETE) {
+                        contents = new byte[in.readInt()];
+                        in.readFully(contents);
+                    }
+                    if (kind == OBJECT) {
+                        objects.put(path, contents);
+                    } else {
+                        files.remove(path);
+                        files.put(path, contents);
+                    }
+                }
+            } catch (EOFException excp) {
+                return start;
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+            records.position(start + 12 + length);
+        }
+        return records.position();
+    }
+
+    /** Append RECORD to the journal and force it to disk, along with the
+     *  directory if the journal is new. */
+    private void append(byte[] record) {
+        appending.acquire(true);
+        boolean created = !file.exists();
+        try (FileChannel channel = FileChannel.open(
+                 file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                 StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            appending.release();
+        }
+        if (created) {
+            force(dir);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** A readers-writer lock on one byte of a file, held by processes through
+ *  a FileChannel lock and by the threads of this process through a
+ *  ReentrantReadWriteLock.  The JVM holds a single file lock for all the
+ *  threads sharing it, since file locks belong to processes; for the same
+ *  reason the file is opened once and never closed.
+ *
+ *  A lock whose file is in a directory that does not exist yet, as when a
+ *  repository is being created, only excludes the threads of this process.
+ *
+ *  @author Han Liang
+ */
+class Lock {
+
+    /** The channels of the lock files, by path. */
+    private static final HashMap<File, FileChannel> CHANNELS = new HashMap<>();
+    /** The locks, by path and position. */
+    private static final HashMap<String, Lock> LOCKS = new HashMap<>();
+
+    /** The file locked. */
+    private final File file;
+    /** The byte of the file locked. */
+    private final long position;
+    /** Excludes the threads of this process. */
+    private final ReentrantReadWriteLock threads = new ReentrantReadWriteLock();
+    /** The lock held on the file, or null. */
+    private FileLock held;
+    /** Number of threads, or nested acquisitions, holding the lock. */
+    private int holders;
+
+    private Lock(File file, long position) {
+        this.file = file;
+        this.position = position;
+    }
+
+    /** Return the lock on byte POSITION of FILE, shared by every user of
+     *  it in this process. */
+    static synchronized Lock on(File file, long position) {
+        File path = file.getAbsoluteFile();
+        return LOCKS.computeIfAbsent(path + "#" + position, k -> new Lock(path, position));
+    }
+
+    /** Acquire the lock, waiting for other processes and threads to release
+     *  it: shared with other readers if EXCLUSIVE is false, and otherwise
+     *  alone.  A thread holding it exclusively may acquire it again either
+     *  way; one holding it shared must not acquire it exclusively. */
+    void acquire(boolean exclusive) {
+        (exclusive ? threads.writeLock() : threads.readLock()).lock();
+        try {
+            synchronized (this) {
+                if (holders == 0) {
+                    FileChannel channel = channel(file);
+                    held = channel == null ? null
+                        : channel.lock(position, 1, !exclusive);
+                }
+                holders += 1;
+            }
+        } catch (IOException excp) {
+            (exclusive ? threads.writeLock() : threads.readLock()).unlock();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Release the lock last acquired by this thread. */
+    void release() {
+        try {
+            synchronized (this) {
+                holders -= 1;
+                if (holders == 0 && held != null) {
+                    FileLock lock = held;
+                    held = null;
+                    lock.release();
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            if (threads.getReadHoldCount() > 0) {
+                threads.readLock().unlock();
+            } else {
+                threads.writeLock().unlock();
+            }
+        }
+    }
+
+    /** Return true iff this thread holds the lock exclusively. */
+    boolean heldExclusively() {
+        return threads.isWriteLockedByCurrentThread();
+    }
+
+    /** Return the channel of FILE, opening it if needed, or null if its
+     *  directory does not exist. */
+    private static synchronized FileChannel channel(File file) throws IOException {
+        FileChannel channel = CHANNELS.get(file);
+        if (channel == null) {
+            try {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                                           StandardOpenOption.READ,
+                                           StandardOpenOption.WRITE);
+            } catch (NoSuchFileException excp) {
+                return null;
+            }
+            CHANNELS.put(file, channel);
+        }
+        return channel;
+    }
+}
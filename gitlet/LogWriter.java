@@ -0,0 +1,84 @@
+package gitlet;
+
+import java.io.PrintStream;
+import java.util.Date;
+import java.util.TimeZone;
+
+import static gitlet.Utils.*;
+
+/** Prints log entries as log and global-log show them, gathering the text
+ *  of many entries before handing it to the stream in one piece.  Dates
+ *  are formatted as String.format would in the default time zone, but the
+ *  parts naming the day are only formatted once per day, since histories
+ *  hold many commits made on the same day.
+ *
+ *  @author Han Liang
+ */
+class LogWriter {
+
+    /** Milliseconds in a day. */
+    private static final long DAY = 24 * 60 * 60 * 1000;
+
+    /** The stream printed to. */
+    private final PrintStream out;
+    /** The text not yet printed. */
+    private final StringBuilder buffer = new StringBuilder(BUFFER_SIZE);
+    /** The local day, counted from the epoch, and the offset from UTC in
+     *  milliseconds, of the cached parts of the date line. */
+    private long day = Long.MIN_VALUE;
+    private int offset;
+    /** The parts of the date line before and after the time of day. */
+    private String dayStart, dayEnd;
+
+    /** A writer printing to OUT. */
+    LogWriter(PrintStream out) {
+        this.out = out;
+    }
+
+    /** Print ENTRY. */
+    void write(Gitlet.LogEntry entry) {
+        buffer.append("===\ncommit ").append(entry.id()).append('\n');
+        if (entry.secondParent() != null) {
+            buffer.append("Merge: ").append(entry.parent(), 0, 7).append(' ')
+                .append(entry.secondParent(), 0, 7).append('\n');
+        }
+        appendDate(entry.date());
+        buffer.append(entry.message()).append("\n\n");
+        if (buffer.length() >= BUFFER_SIZE) {
+            flush();
+        }
+    }
+
+    /** Print the text gathered so far. */
+    void flush() {
+        out.print(buffer);
+        out.flush();
+        buffer.setLength(0);
+    }
+
+    /** Append the date line of a commit made at DATE. */
+    private void appendDate(Date date) {
+        long time = date.getTime();
+        int zone = TimeZone.getDefault().getOffset(time);
+        long local = time + zone;
+        if (Math.floorDiv(local, DAY) != day || zone != offset) {
+            day = Math.floorDiv(local, DAY);
+            offset = zone;
+            dayStart = String.format("Date: %1$ta %1$tb %1$td ", date);
+            dayEnd = String.format(" %1$tY %1$tz\n", date);
+        }
+        int seconds = (int) (Math.floorMod(local, DAY) / 1000);
+        buffer.append(dayStart);
+        appendTwoDigits(seconds / 3600);
+        buffer.append(':');
+        appendTwoDigits(seconds / 60 % 60);
+        buffer.append(':');
+        appendTwoDigits(seconds % 60);
+        buffer.append(dayEnd);
+    }
+
+    /** Append N, which is less than 100, as two digits. */
+    private void appendTwoDigits(int n) {
+        buffer.append((char) ('0' + n / 10)).append((char) ('0' + n % 10));
+    }
+}
@@ -0,0 +1,58 @@
+package gitlet;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/** A map of bounded size that evicts its least recently used entry when
+ *  full.  Safe to use from several threads at once.
+ *
+ *  @author Han Liang
+ */
+class LruCache<K, V> {
+
+    /** The entries, least recently used first. */
+    private final LinkedHashMap<K, V> entries;
+
+    /** An empty cache holding at most CAPACITY entries. */
+    LruCache(int capacity) {
+        entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /** Return the value of KEY, or null if it is not cached. */
+    synchronized V get(K key) {
+        return entries.get(key);
+    }
+
+    /** Return the value of KEY, computing it with LOAD and caching it if
+     *  it is not cached.  LOAD runs outside the lock, so two threads may
+     *  both compute the same value. */
+    V get(K key, Function<K, V> load) {
+        V value = get(key);
+        if (value == null) {
+            value = load.apply(key);
+            put(key, value);
+        }
+        return value;
+    }
+
+    /** Cache VALUE as the value of KEY. */
+    synchronized void put(K key, V value) {
+        entries.put(key, value);
+    }
+
+    /** Forget the value of KEY. */
+    synchronized void remove(K key) {
+        entries.remove(key);
+    }
+
+    /** Forget every entry. */
+    synchronized void clear() {
+        entries.clear();
+    }
+}
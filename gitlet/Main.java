@@ -1,88 +1,291 @@
 package gitlet;
 
+import java.io.File;
 import java.io.IOException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static gitlet.Utils.*;
 
 /** Driver class for Gitlet, a subset of the Git version-control system.
  *  @author Han Liang
  */
 public class Main {
 
+    /** How long gc keeps unreachable objects, unless told not to. */
+    private static final Duration GC_GRACE = Duration.ofDays(14);
+
     /** Usage: java gitlet.Main ARGS, where ARGS contains
      *  <COMMAND> <OPERAND1> <OPERAND2> ... 
+     *  If a daemon serves the repository, the command is run by it.
      */
     public static void main(String[] args) throws IOException {
+        File workDir = new File(System.getProperty("user.dir"));
+        if (args.length > 0 && !args[0].equals("init")
+            && !(args[0].equals("daemon") && args.length == 1)) {
+            Daemon.forward(workDir, args);
+        }
+        try {
+            run(workDir, null, args);
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+        }
+    }
+
+    /** Run the command ARGS on the repository in WORKDIR, which is GITLET
+     *  if it is already open and otherwise is opened when needed, printing
+     *  its results.  Throw a GitletException holding the message to print
+     *  if it fails. */
+    static void run(File workDir, Gitlet gitlet, String[] args) throws IOException {
         if (args.length == 0) {
-            System.out.println("Please enter a command.");
-            System.exit(0);
+            throw error("Please enter a command.");
         }
 
         String firstArg = args[0];
         switch (firstArg) {
             case "init" -> {
                 numberOfOperands(args.length, 1);
-                Repository.setupPersistence();
+                Gitlet.init(workDir.toPath());
             }
             case "add" -> {
-                Repository.repoExist();
-                numberOfOperands(args.length, 2);
-                Repository.add(args[1]);
+                gitlet = open(workDir, gitlet);
+                if (args.length < 2) {
+                    operandsError();
+                }
+                gitlet.add(Arrays.copyOfRange(args, 1, args.length));
             }
             case "commit" -> {
-                Repository.repoExist();
+                gitlet = open(workDir, gitlet);
                 commitMessage(args.length);
                 numberOfOperands(args.length, 2);
-                Repository.newCommit(args[1]);
+                gitlet.commit(args[1]);
             }
             case "rm" -> {
                 numberOfOperands(args.length, 2);
-                Repository.remove(args[1]);
-            }
-            case "log" -> {
-                numberOfOperands(args.length, 1);
-                Repository.log();
+                open(workDir, gitlet).rm(args[1]);
             }
-            case "global-log" -> {
-                numberOfOperands(args.length, 1);
-                Repository.globalLog();
+            case "log", "global-log" -> {
+                Gitlet.LogFilter filter = logFilter(args);
+                gitlet = open(workDir, gitlet);
+                LogWriter out = new LogWriter(System.out);
+                try {
+                    if (firstArg.equals("log")) {
+                        gitlet.log(filter, out::write);
+                    } else {
+                        gitlet.globalLog(filter, out::write);
+                    }
+                } finally {
+                    out.flush();
+                }
             }
             case "checkout" -> {
                 if (args.length == 3 && args[1].equals("--")) {
                     String fileName = args[2];
-                    Repository.checkoutFile(fileName, Repository.refHEADCommit());
+                    open(workDir, gitlet).checkoutFile(fileName);
                 } else if (args.length == 4 && args[2].equals("--")) {
                     String fileName = args[3];
-                    Repository.checkoutFile(fileName, args[1]);
+                    open(workDir, gitlet).checkoutFile(args[1], fileName);
                 } else if (args.length == 2) {
                     String branchName = args[1];
-                    Repository.checkoutBranch(branchName);
+                    open(workDir, gitlet).checkout(branchName);
                 } else {
                     operandsError();
                 }
             }
             case "status" -> {
                 numberOfOperands(args.length, 1);
-                Repository.status();
+                printStatus(open(workDir, gitlet).status());
             }
             case "branch" -> {
                 numberOfOperands(args.length, 2);
-                Repository.branch(args[1]);
+                open(workDir, gitlet).branch(args[1]);
             }
             case "rm-branch" -> {
                 numberOfOperands(args.length, 2);
-                Repository.rmBranch(args[1]);
+                open(workDir, gitlet).rmBranch(args[1]);
             }
             case "reset" -> {
                 numberOfOperands(args.length, 2);
-                Repository.reset(args[1]);
+                open(workDir, gitlet).reset(args[1]);
             }
             case "merge" -> {
                 numberOfOperands(args.length, 2);
-                Repository.merge(args[1]);
+                switch (open(workDir, gitlet).merge(args[1])) {
+                    case FAST_FORWARDED -> System.out.println("Current branch fast-forwarded.");
+                    case ALREADY_MERGED ->
+                        System.out.println("Given branch is an ancestor of the current branch.");
+                    case CONFLICTED -> System.out.println("Encountered a merge conflict.");
+                    default -> { }
+                }
+            }
+            case "merge-base" -> {
+                numberOfOperands(args.length, 3);
+                String refSplitCommit = open(workDir, gitlet).mergeBase(args[1], args[2]);
+                if (refSplitCommit != null) {
+                    System.out.println(refSplitCommit);
+                }
+            }
+            case "merge-tree" -> {
+                numberOfOperands(args.length, 3);
+                Gitlet.MergeTree result = open(workDir, gitlet).mergeTree(args[1], args[2]);
+                System.out.println(result.tree());
+                for (String fileName : result.conflicts()) {
+                    System.out.println(fileName);
+                }
+            }
+            case "diff" -> {
+                List<String> names = new ArrayList<>();
+                String path = null;
+                for (int k = 1; k < args.length; k += 1) {
+                    if (args[k].equals("--")) {
+                        numberOfOperands(args.length, k + 2);
+                        path = args[k + 1];
+                        break;
+                    }
+                    names.add(args[k]);
+                }
+                if (names.size() > 2) {
+                    operandsError();
+                }
+                names.add(null);
+                names.add(null);
+                open(workDir, gitlet).diff(names.get(0), names.get(1), path, System.out);
+            }
+            case "repack" -> {
+                gitlet = open(workDir, gitlet);
+                numberOfOperands(args.length, 1);
+                gitlet.repack();
+            }
+            case "gc" -> {
+                gitlet = open(workDir, gitlet);
+                Duration grace = GC_GRACE;
+                if (args.length == 2 && args[1].equals("--now")) {
+                    grace = Duration.ZERO;
+                } else {
+                    numberOfOperands(args.length, 1);
+                }
+                Gitlet.Collected collected = gitlet.gc(grace);
+                System.out.printf("Removed %d commits, %d trees and %d blobs, freeing %d bytes.%n",
+                                  collected.commits(), collected.trees(), collected.blobs(),
+                                  collected.bytes());
+            }
+            case "daemon" -> {
+                if (args.length == 1) {
+                    Daemon.serve(open(workDir, gitlet));
+                } else if (args.length == 2 && args[1].equals("stop")) {
+                    throw error("No daemon is running.");
+                } else {
+                    operandsError();
+                }
             }
             default -> operandsError();
         }
     }
 
+    /** Return GITLET if it is not null, and otherwise open the repository
+     *  in WORKDIR. */
+    private static Gitlet open(File workDir, Gitlet gitlet) {
+        return gitlet != null ? gitlet : Gitlet.open(workDir.toPath());
+    }
+
+    /** Return the filter given by the options of log in ARGS:
+     *  -n LIMIT, --since DATE, --until DATE, --grep PATTERN and -- PATH.  A
+     *  DATE is yyyy-MM-dd or yyyy-MM-ddTHH:mm[:ss] in local time; a day
+     *  alone starts at midnight for --since and ends at midnight for
+     *  --until.  A PATH names a file or a directory. */
+    private static Gitlet.LogFilter logFilter(String[] args) {
+        int limit = -1;
+        Date since = null, until = null;
+        Pattern grep = null;
+        String path = null;
+        if (args.length % 2 == 0) {
+            operandsError();
+        }
+        try {
+            for (int k = 1; k < args.length; k += 2) {
+                String value = args[k + 1];
+                switch (args[k]) {
+                    case "-n" -> limit = Math.max(0, Integer.parseInt(value));
+                    case "--since" -> since = parseDate(value, false);
+                    case "--until" -> until = parseDate(value, true);
+                    case "--grep" -> grep = Pattern.compile(value);
+                    case "--" -> path = value.replaceAll("/+$", "");
+                    default -> operandsError();
+                }
+            }
+        } catch (NumberFormatException | DateTimeParseException | PatternSyntaxException excp) {
+            operandsError();
+        }
+        if (path != null && path.isEmpty()) {
+            operandsError();
+        }
+        return new Gitlet.LogFilter(limit, since, until, grep, path);
+    }
+
+    /** Return the local time VALUE, or the start of its day if it is a day
+     *  alone, or the end of it if END. */
+    private static Date parseDate(String value, boolean end) {
+        LocalDateTime time;
+        if (value.contains("T")) {
+            time = LocalDateTime.parse(value);
+        } else {
+            LocalDate day = LocalDate.parse(value);
+            time = end ? day.plusDays(1).atStartOfDay().minusNanos(1_000_000)
+                : day.atStartOfDay();
+        }
+        return Date.from(time.atZone(ZoneId.systemDefault()).toInstant());
+    }
+
+    /** Print STATUS in its five sections. */
+    private static void printStatus(Gitlet.Status status) {
+        System.out.println("=== Branches ===");
+        for (String branchName : status.branches()) {
+            if (branchName.equals(status.branch())) {
+                System.out.println("*" + branchName);
+            } else {
+                System.out.println(branchName);
+            }
+        }
+        System.out.println();
+        System.out.println("=== Staged Files ===");
+        for (String fileName : status.staged()) {
+            System.out.println(fileName);
+        }
+        System.out.println();
+        System.out.println("=== Removed Files ===");
+        for (String fileName : status.removed()) {
+            System.out.println(fileName);
+        }
+        System.out.println();
+        TreeSet<String> modified = new TreeSet<>();
+        for (String fileName : status.modified()) {
+            modified.add(fileName + " (modified)");
+        }
+        for (String fileName : status.deleted()) {
+            modified.add(fileName + " (deleted)");
+        }
+        System.out.println("=== Modifications Not Staged For Commit ===");
+        for (String line : modified) {
+            System.out.println(line);
+        }
+        System.out.println();
+        System.out.println("=== Untracked Files ===");
+        for (String fileName : status.untracked()) {
+            System.out.println(fileName);
+        }
+        System.out.println();
+    }
+
     private static void numberOfOperands(int n, int m) {
         if (n != m) {
             operandsError();
@@ -91,13 +294,11 @@ public class Main {
 
     private static void commitMessage(int n) {
         if (n == 1) {
-            System.out.println("Please enter a commit message.");
-            System.exit(0);
+            throw error("Please enter a commit message.");
         }
     }
 
     private static void operandsError() {
-        System.out.println("Incorrect operands.");
-        System.exit(0);
+        throw error("Incorrect operands.");
     }
 }
@@ -0,0 +1,184 @@
+package gitlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/** The three-way merge of the lines of two texts descended from a common
+ *  base, as diff3 does it.  The edits of each side against the base are
+ *  found with Diff; an edit that no edit of the other side overlaps or
+ *  touches is taken as it is, and the base is kept wherever neither side
+ *  changed it.  Where edits of both sides overlap, the region of the base
+ *  they cover becomes a conflict, unless both made it the same, and only
+ *  the lines that differ go between the markers.
+ *
+ *  The texts are copied straight from their buffers to the output, so
+ *  memory holds no more than their line offsets and edits.  Binary texts
+ *  are not merged by line: if both sides changed them, the whole of each
+ *  side goes into one conflict.
+ *
+ *  @author Han Liang
+ */
+class Merge {
+
+    /** The markers around and between the two sides of a conflict. */
+    private static final byte[] OURS = "<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEPARATOR = "=======\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] THEIRS = ">>>>>>>\n".getBytes(StandardCharsets.UTF_8);
+
+    /** Write the merge of the texts OURS and THEIRS, both descended from
+     *  BASE, to OUT.  Return true iff it has conflicts. */
+    static boolean write(ByteBuffer base, ByteBuffer ours, ByteBuffer theirs,
+                         OutputStream out) throws IOException {
+        byte[] buffer = new byte[Utils.BUFFER_SIZE];
+        if (Diff.binary(base) || Diff.binary(ours) || Diff.binary(theirs)) {
+            if (ours.equals(theirs) || theirs.equals(base)) {
+                copy(ours, 0, ours.limit(), out, buffer);
+                return false;
+            } else if (ours.equals(base)) {
+                copy(theirs, 0, theirs.limit(), out, buffer);
+                return false;
+            }
+            conflict(ours, 0, ours.limit(), theirs, 0, theirs.limit(), out, buffer);
+            return true;
+        }
+
+        List<Diff.Edit> mine = Diff.edits(base, ours);
+        List<Diff.Edit> other = Diff.edits(base, theirs);
+        boolean conflicts = false;
+        int copied = 0;
+        int i = 0, j = 0;
+        while (i < mine.size() || j < other.size()) {
+            int firstMine = i, firstOther = j;
+            Diff.Edit first;
+            if (j == other.size()
+                || i < mine.size() && mine.get(i).start() <= other.get(j).start()) {
+                first = mine.get(i++);
+            } else {
+                first = other.get(j++);
+            }
+            int end = first.end(), from = first.from(), to = first.to();
+            while (true) {
+                Diff.Edit next;
+                if (i < mine.size() && mine.get(i).start() <= end) {
+                    next = mine.get(i++);
+                } else if (j < other.size() && other.get(j).start() <= end) {
+                    next = other.get(j++);
+                } else {
+                    break;
+                }
+                if (next.end() > end) {
+                    end = next.end();
+                    to = next.to();
+                }
+            }
+
+            copy(base, copied, from, out, buffer);
+            copied = to;
+            if (j == firstOther) {
+                copy(ours, mine.get(firstMine).from2(), mine.get(i - 1).to2(), out, buffer);
+            } else if (i == firstMine) {
+                copy(theirs, other.get(firstOther).from2(), other.get(j - 1).to2(), out, buffer);
+            } else {
+                int oursFrom = side(mine.get(firstMine), from, true);
+                int oursTo = side(mine.get(i - 1), to, false);
+                int theirsFrom = side(other.get(firstOther), from, true);
+                int theirsTo = side(other.get(j - 1), to, false);
+                if (equal(ours, oursFrom, oursTo, theirs, theirsFrom, theirsTo)) {
+                    copy(ours, oursFrom, oursTo, out, buffer);
+                } else {
+                    conflict(ours, oursFrom, oursTo, theirs, theirsFrom, theirsTo, out, buffer);
+                    conflicts = true;
+                }
+            }
+        }
+        copy(base, copied, base.limit(), out, buffer);
+        return conflicts;
+    }
+
+    /** Return the offset in the side EDIT makes of the offset BOUND of the
+     *  base, which lies before EDIT if START and after it otherwise, with
+     *  nothing but unchanged lines between. */
+    private static int side(Diff.Edit edit, int bound, boolean start) {
+        return start ? edit.from2() - (edit.from() - bound) : edit.to2() + (bound - edit.to());
+    }
+
+    /** Write a conflict between the bytes FROM1 to TO1 of OURS and FROM2 to
+     *  TO2 of THEIRS to OUT, keeping their common leading and trailing
+     *  lines outside of it, using BUFFER to copy. */
+    private static void conflict(ByteBuffer ours, int from1, int to1,
+                                 ByteBuffer theirs, int from2, int to2,
+                                 OutputStream out, byte[] buffer) throws IOException {
+        while (from1 < to1 && from2 < to2) {
+            int end1 = lineEnd(ours, from1, to1), end2 = lineEnd(theirs, from2, to2);
+            if (!equal(ours, from1, end1, theirs, from2, end2)
+                || ours.get(end1 - 1) != '\n') {
+                break;
+            }
+            copy(ours, from1, end1, out, buffer);
+            from1 = end1;
+            from2 = end2;
+        }
+        int trailing = to1;
+        while (from1 < to1 && from2 < to2) {
+            int start1 = lineStart(ours, from1, to1), start2 = lineStart(theirs, from2, to2);
+            if (!equal(ours, start1, to1, theirs, start2, to2)) {
+                break;
+            }
+            to1 = start1;
+            to2 = start2;
+        }
+        out.write(OURS);
+        copy(ours, from1, to1, out, buffer);
+        if (from1 < to1 && ours.get(to1 - 1) != '\n') {
+            out.write('\n');
+        }
+        out.write(SEPARATOR);
+        copy(theirs, from2, to2, out, buffer);
+        if (from2 < to2 && theirs.get(to2 - 1) != '\n') {
+            out.write('\n');
+        }
+        out.write(THEIRS);
+        copy(ours, to1, trailing, out, buffer);
+    }
+
+    /** Return the end of the line of TEXT starting at FROM, which ends at
+     *  TO at the latest. */
+    private static int lineEnd(ByteBuffer text, int from, int to) {
+        while (from < to && text.get(from) != '\n') {
+            from += 1;
+        }
+        return Math.min(from + 1, to);
+    }
+
+    /** Return the start of the line of TEXT ending at TO, which starts at
+     *  FROM at the earliest. */
+    private static int lineStart(ByteBuffer text, int from, int to) {
+        to -= 1;
+        while (to > from && text.get(to - 1) != '\n') {
+            to -= 1;
+        }
+        return to;
+    }
+
+    /** Return true iff the bytes FROM1 to TO1 of TEXT1 equal the bytes
+     *  FROM2 to TO2 of TEXT2. */
+    private static boolean equal(ByteBuffer text1, int from1, int to1,
+                                 ByteBuffer text2, int from2, int to2) {
+        return to1 - from1 == to2 - from2
+            && text1.slice(from1, to1 - from1).equals(text2.slice(from2, to2 - from2));
+    }
+
+    /** Write the bytes FROM to TO of TEXT to OUT, using BUFFER. */
+    private static void copy(ByteBuffer text, int from, int to, OutputStream out,
+                             byte[] buffer) throws IOException {
+        while (from < to) {
+            int length = Math.min(buffer.length, to - from);
+            text.get(from, buffer, 0, length);
+            out.write(buffer, 0, length);
+            from += length;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/** Finds the merge bases of two commits in a CommitGraph: the common
+ *  ancestors that are not ancestors of another common ancestor.
+ *
+ *  Both commits are walked at once, newest generation first.  Each commit
+ *  reached is painted with the side(s) it was reached from; a commit painted
+ *  from both sides is a merge base, and everything below it is painted
+ *  STALE, since it cannot be a better one.  The walk stops as soon as only
+ *  stale commits are left, so it never goes further back than the oldest
+ *  merge base.  Flags are kept per position in the graph, never by
+ *  comparing Commit objects.
+ *
+ *  @author Han Liang
+ */
+class MergeBase {
+
+    /** Reached from the first commit. */
+    private static final byte PARENT1 = 1;
+    /** Reached from the second commit. */
+    private static final byte PARENT2 = 2;
+    /** Below a merge base already found. */
+    private static final byte STALE = 4;
+    /** Already reported as a merge base. */
+    private static final byte RESULT = 8;
+
+    /** The graph walked. */
+    private final CommitGraph graph;
+    /** Flags of each commit, by position in the graph. */
+    private final byte[] flags;
+    /** Which commits are in the queue. */
+    private final boolean[] queued;
+    /** The commits left to visit, newest generation first. */
+    private final PriorityQueue<Integer> queue;
+    /** Number of queued commits that are not STALE. */
+    private int nonStale;
+
+    /** A walk over GRAPH. */
+    private MergeBase(CommitGraph graph) {
+        this.graph = graph;
+        flags = new byte[graph.size()];
+        queued = new boolean[graph.size()];
+        queue = new PriorityQueue<>((a, b) -> {
+            int cmp = Integer.compare(graph.generation(b), graph.generation(a));
+            return cmp != 0 ? cmp : Long.compare(graph.date(b), graph.date(a));
+        });
+    }
+
+    /** Return the position of the best merge base of the commits at ONE and
+     *  TWO in GRAPH, or CommitGraph.NONE if they have no common ancestor.
+     *  Of several merge bases, the one of largest generation is chosen. */
+    static int find(CommitGraph graph, int one, int two) {
+        List<Integer> bases = findAll(graph, one, two);
+        return bases.isEmpty() ? CommitGraph.NONE : bases.get(0);
+    }
+
+    /** Return the positions of the merge bases of the commits at ONE and TWO
+     *  in GRAPH, largest generation first. */
+    static List<Integer> findAll(CommitGraph graph, int one, int two) {
+        if (one == two) {
+            return List.of(one);
+        }
+        return new MergeBase(graph).paint(one, two);
+    }
+
+    /** Walk down from ONE and TWO and return the merge bases found. */
+    private List<Integer> paint(int one, int two) {
+        List<Integer> result = new ArrayList<>();
+        mark(one, PARENT1);
+        mark(two, PARENT2);
+        while (nonStale > 0) {
+            int commit = queue.poll();
+            queued[commit] = false;
+            int paint = flags[commit] & (PARENT1 | PARENT2 | STALE);
+            if ((paint & STALE) == 0) {
+                nonStale -= 1;
+            }
+            if (paint == (PARENT1 | PARENT2)) {
+                if ((flags[commit] & RESULT) == 0) {
+                    flags[commit] |= RESULT;
+                    result.add(commit);
+                }
+                paint |= STALE;
+            }
+            int parent = graph.parent(commit);
+            if (parent != CommitGraph.NONE) {
+                mark(parent, paint);
+            }
+            int secondParent = graph.secondParent(commit);
+            if (secondParent != CommitGraph.NONE) {
+                mark(secondParent, paint);
+            }
+        }
+        result.removeIf(commit -> (flags[commit] & STALE) != 0);
+        return result;
+    }
+
+    /** Add the flags PAINT to COMMIT, queueing it if they are new. */
+    private void mark(int commit, int paint) {
+        byte old = flags[commit];
+        byte updated = (byte) (old | paint);
+        if (updated == old) {
+            return;
+        }
+        flags[commit] = updated;
+        if (!queued[commit]) {
+            queued[commit] = true;
+            queue.add(commit);
+            if ((updated & STALE) == 0) {
+                nonStale += 1;
+            }
+        } else if ((old & STALE) == 0 && (updated & STALE) != 0) {
+            nonStale -= 1;
+        }
+    }
+}
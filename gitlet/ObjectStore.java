@@ -0,0 +1,476 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+
+/** A store of objects of a repository, such as its blobs or its commits.
+ *  An object is either loose, or inside one of the pack files in the pack
+ *  subdirectory.  Readers need not know which.  Since format 3, a loose
+ *  object with id ABCDEF... is stored as AB/CDEF..., fanning the objects out
+ *  over 256 shard directories.
+ *  In repositories of format 2 and later, loose objects are compressed; an
+ *  object's id is always the hash of its uncompressed contents.
+ *
+ *  @author Han Liang
+ */
+class ObjectStore {
+
+    /** Longest chain of deltas repack will build. */
+    private static final int MAX_DEPTH = 16;
+    /** Size at which repack starts a new pack. */
+    private static final int MAX_PACK_SIZE = 1 << 30;
+    /** Objects larger than this are never packed, so that they are always
+     *  streamed rather than read into memory. */
+    private static final long MAX_PACKED_OBJECT = 1 << 26;
+    /** Name of the subdirectory of a store holding the objects being
+     *  written, which only a crash leaves behind. */
+    static final String TEMP_DIR = "tmp";
+
+    /** The directory of loose objects. */
+    private final File dir;
+    /** The directory of packs. */
+    private final File packDir;
+    /** The directory of objects being written. */
+    private final File tempDir;
+    /** The repository of the store, whose format decides how loose objects
+     *  are stored. */
+    private final Repository repository;
+    /** The open packs, loaded on first use. */
+    private List<PackFile> packs;
+
+    /** A store of objects of REPOSITORY kept in DIR. */
+    ObjectStore(File dir, Repository repository) {
+        this.dir = dir;
+        this.packDir = join(dir, "pack");
+        this.tempDir = join(dir, TEMP_DIR);
+        this.repository = repository;
+    }
+
+    /** Return the file holding the loose object ID. */
+    File looseFile(String id) {
+        return join(dir, id.substring(0, 2), id.substring(2));
+    }
+
+    /** Return true iff the object ID is stored. */
+    boolean contains(String id) {
+        if (looseFile(id).exists()) {
+            return true;
+        }
+        for (PackFile pack : packs()) {
+            if (pack.contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return the contents of the object ID. */
+    byte[] read(String id) {
+        File file = looseFile(id);
+        if (file.isFile()) {
+            return compressed() ? readCompressed(file) : readContents(file);
+        }
+        for (PackFile pack : packs()) {
+            byte[] content = pack.read(id);
+            if (content != null) {
+                return content;
+            }
+        }
+        throw new IllegalArgumentException("no such object " + id);
+    }
+
+    /** Return the contents of the object ID as a String. */
+    String readAsString(String id) {
+        return new String(read(id), StandardCharsets.UTF_8);
+    }
+
+    /** Return a stream of the contents of the object ID.  Loose objects are
+     *  streamed from their files, so their size does not matter. */
+    InputStream open(String id) {
+        File file = looseFile(id);
+        if (file.isFile()) {
+            try {
+                InputStream in = new BufferedInputStream(Files.newInputStream(file.toPath()),
+                                                         BUFFER_SIZE);
+                if (!compressed()) {
+                    return in;
+                }
+                DataInputStream header = new DataInputStream(in);
+                if (header.readInt() != COMPRESSED_MAGIC) {
+                    in.close();
+                    throw new IllegalArgumentException("not a compressed file");
+                }
+                header.readLong();
+                return new InflaterInputStream(in);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        return new ByteArrayInputStream(read(id));
+    }
+
+    /** Write the contents of the object ID to TARGET, creating or
+     *  overwriting it and creating its directories, through a fixed-size
+     *  buffer. */
+    void copyTo(String id, File target) {
+        target.getParentFile().mkdirs();
+        try (InputStream in = open(id);
+             OutputStream out = Files.newOutputStream(target.toPath())) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Store the contents of FILE and return their id.  The file is read
+     *  once, through a fixed-size buffer, hashing and storing at the same
+     *  time; the object is written to a temporary file in TEMP_DIR and only
+     *  moved into place once its id is known. */
+    String write(File file) {
+        File temp = tempFile();
+        String id;
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            id = store(in, temp, compressed());
+        } catch (IOException excp) {
+            temp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        install(temp, id);
+        return id;
+    }
+
+    /** Store CONTENT as the loose object ID, unless it is already stored.
+     *  As with write(FILE), the object only appears once it is whole. */
+    void write(String id, byte[] content) {
+        if (!contains(id)) {
+            File temp = tempFile();
+            try {
+                writeContents(temp, compressed() ? compress(content) : content);
+            } catch (IllegalArgumentException excp) {
+                temp.delete();
+                throw excp;
+            }
+            install(temp, id);
+        }
+    }
+
+    /** Store CONTENT, returning its id. */
+    String write(byte[] content) {
+        String id = sha1(content);
+        write(id, content);
+        return id;
+    }
+
+    /** Return a new temporary file in TEMP_DIR. */
+    private File tempFile() {
+        try {
+            tempDir.mkdirs();
+            return File.createTempFile("object", ".tmp", tempDir);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Move TEMP, holding the object ID as stored, into place as a loose
+     *  object with a single atomic rename, so that readers and other
+     *  writers of the same object never see it partly written, and record
+     *  it in the journal.  If the object is already stored, delete TEMP. */
+    private void install(File temp, String id) {
+        if (contains(id)) {
+            temp.delete();
+            return;
+        }
+        File object = looseFile(id);
+        object.getParentFile().mkdirs();
+        try {
+            Files.move(temp.toPath(), object.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            temp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        repository.journal.created(object);
+    }
+
+    /** Copy IN to the loose object file TEMP, compressing it if COMPRESS,
+     *  and return the hash of its contents.  The length in the header is
+     *  only known at the end, so it is filled in last. */
+    private static String store(InputStream in, File temp, boolean compress)
+        throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+        long length = 0;
+        try (DataOutputStream file = new DataOutputStream(new BufferedOutputStream(
+                 Files.newOutputStream(temp.toPath()), BUFFER_SIZE))) {
+            OutputStream out = file;
+            if (compress) {
+                file.writeInt(COMPRESSED_MAGIC);
+                file.writeLong(0);
+                out = new DeflaterOutputStream(file);
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                md.update(buffer, 0, n);
+                out.write(buffer, 0, n);
+                length += n;
+            }
+            out.close();
+        }
+        if (compress) {
+            try (RandomAccessFile file = new RandomAccessFile(temp, "rw")) {
+                file.seek(4);
+                file.writeLong(length);
+            }
+        }
+        byte[] digest = md.digest();
+        return bytesToHex(digest, 0, digest.length);
+    }
+
+    /** Return the size of the contents of the loose object ID. */
+    private long looseSize(String id) {
+        File file = looseFile(id);
+        if (!compressed()) {
+            return file.length();
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file.toPath()))) {
+            in.readInt();
+            return in.readLong();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the ids of all loose objects, in lexicographic order. */
+    List<String> looseIds() {
+        return ids().toList();
+    }
+
+    /** Return a parallel stream of the ids of all loose objects, in
+     *  lexicographic order.  The shards are listed concurrently; callers
+     *  that need the order should consume it with forEachOrdered. */
+    Stream<String> ids() {
+        return IntStream.range(0, 256).parallel()
+            .mapToObj(shard -> String.format("%02x", shard))
+            .flatMap(shard -> {
+                List<String> names = plainFilenamesIn(join(dir, shard));
+                return names == null ? Stream.empty()
+                    : names.stream().map(name -> shard + name);
+            });
+    }
+
+    /** Move the loose objects of a format 2 or earlier store, which all lie
+     *  directly in its directory, into their shards, compressing them on the
+     *  way if COMPRESS. */
+    void shard(boolean compress) {
+        for (String id : plainFilenamesIn(dir)) {
+            File flat = join(dir, id);
+            File file = looseFile(id);
+            file.getParentFile().mkdirs();
+            if (compress) {
+                try (InputStream in = Files.newInputStream(flat.toPath())) {
+                    store(in, file, true);
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+                flat.delete();
+            } else {
+                flat.renameTo(file);
+            }
+        }
+    }
+
+    /** Move every object into a single new pack and delete the loose objects and
+     *  the old packs.  Each list in CHAINS holds the versions of one file,
+     *  newest first; each version is stored as a delta against the one
+     *  before it, so the newest versions are the cheapest to read.  Objects
+     *  larger than MAX_PACKED_OBJECT stay loose.  The new packs are forced
+     *  to disk before anything is deleted. */
+    void repack(List<List<String>> chains) {
+        repack(chains, Set.of());
+    }
+
+    /** Repack as repack(CHAINS) does, leaving out the packed objects in
+     *  DROPPED. */
+    private void repack(List<List<String>> chains, Set<String> dropped) {
+        Set<String> all = new HashSet<>(looseIds());
+        all.removeIf(id -> looseSize(id) > MAX_PACKED_OBJECT);
+        List<PackFile> oldPacks = packs();
+        for (PackFile pack : oldPacks) {
+            for (int k = 0; k < pack.size(); k += 1) {
+                if (!dropped.contains(pack.id(k))) {
+                    all.add(pack.id(k));
+                }
+            }
+        }
+
+        List<String> written = new ArrayList<>();
+        Set<String> packed = new HashSet<>();
+        PackFile.Writer writer = new PackFile.Writer(packDir);
+        List<List<String>> singles = new ArrayList<>();
+        for (String id : all) {
+            singles.add(List.of(id));
+        }
+        List<List<String>> order = new ArrayList<>(chains);
+        order.addAll(singles);
+        for (List<String> chain : order) {
+            String baseId = null;
+            byte[] base = null;
+            int depth = 0;
+            for (String id : chain) {
+                if (!all.contains(id) || packed.contains(id)) {
+                    continue;
+                }
+                if (writer.size() > MAX_PACK_SIZE) {
+                    written.add(writer.finish());
+                    writer = new PackFile.Writer(packDir);
+                }
+                byte[] content = read(id);
+                boolean delta = writer.add(id, content,
+                                           depth < MAX_DEPTH ? baseId : null, base);
+                packed.add(id);
+                depth = delta ? depth + 1 : 0;
+                baseId = id;
+                base = content;
+            }
+        }
+        written.add(writer.finish());
+        for (String name : written) {
+            if (name != null) {
+                Journal.force(join(packDir, name + ".pack"));
+                Journal.force(join(packDir, name + ".idx"));
+            }
+        }
+        Journal.force(packDir);
+
+        for (String name : plainFilenamesIn(packDir)) {
+            String stem = name.substring(0, name.lastIndexOf('.'));
+            if (!written.contains(stem)) {
+                join(packDir, name).delete();
+            }
+        }
+        for (String id : packed) {
+            looseFile(id).delete();
+        }
+        packs = null;
+    }
+
+    /** Delete the objects that are not in LIVE and were stored before
+     *  CUTOFF, in milliseconds since the epoch, and return their number.
+     *  Loose objects are dated by their files and packed ones by their
+     *  pack; the packs holding any such object are rewritten without them,
+     *  as repack would with the chains CHAINS supplies, and new packs forced to disk before the old
+     *  ones are deleted.  Loose objects are looked at in parallel, so LIVE
+     *  must be safe to read from several threads.  Temporary files that
+     *  writes cut short left before CUTOFF are deleted too. */
+    int prune(Set<String> live, long cutoff, Supplier<List<List<String>>> chains) {
+        deleteTempFiles(cutoff);
+        List<String> dead = ids()
+            .filter(id -> !live.contains(id) && looseFile(id).lastModified() < cutoff)
+            .toList();
+        dead.parallelStream().forEach(id -> looseFile(id).delete());
+        Set<String> dropped = new HashSet<>();
+        for (PackFile pack : packs()) {
+            if (pack.file().lastModified() < cutoff) {
+                for (int k = 0; k < pack.size(); k += 1) {
+                    if (!live.contains(pack.id(k))) {
+                        dropped.add(pack.id(k));
+                    }
+                }
+            }
+        }
+        if (!dropped.isEmpty()) {
+            repack(chains.get(), dropped);
+        }
+        return dead.size() + dropped.size();
+    }
+
+    /** Delete the temporary files of objects and packs made before CUTOFF,
+     *  including those written directly in the store's directory before
+     *  it had TEMP_DIR. */
+    private void deleteTempFiles(long cutoff) {
+        for (File directory : new File[] {tempDir, dir, packDir}) {
+            File[] stale = directory.listFiles(
+                file -> file.getName().endsWith(".tmp") && file.lastModified() < cutoff);
+            for (File file : stale == null ? new File[0] : stale) {
+                file.delete();
+            }
+        }
+    }
+
+    /** Return the number of bytes the files of the loose objects, of the
+     *  packs and of the objects being written take. */
+    long size() {
+        long total = IntStream.range(0, 256).parallel()
+            .mapToLong(shard -> {
+                File[] files = join(dir, String.format("%02x", shard)).listFiles();
+                long bytes = 0;
+                for (File file : files == null ? new File[0] : files) {
+                    bytes += file.length();
+                }
+                return bytes;
+            }).sum();
+        for (File directory : new File[] {packDir, tempDir}) {
+            File[] files = directory.listFiles();
+            for (File file : files == null ? new File[0] : files) {
+                total += file.length();
+            }
+        }
+        return total;
+    }
+
+    /** Close the packs, so that they are listed again. */
+    synchronized void reload() {
+        packs = null;
+    }
+
+    /** Return true iff loose objects are compressed. */
+    private boolean compressed() {
+        return repository.formatVersion() >= 2;
+    }
+
+    /** Return the open packs, opening them if needed. */
+    private synchronized List<PackFile> packs() {
+        if (packs == null) {
+            packs = new ArrayList<>();
+            List<String> names = plainFilenamesIn(packDir);
+            if (names != null) {
+                for (String name : names) {
+                    if (name.endsWith(".idx")) {
+                        packs.add(new PackFile(join(packDir, name)));
+                    }
+                }
+            }
+        }
+        return packs;
+    }
+}
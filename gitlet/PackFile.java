@@ -0,0 +1,263 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/** A pack of blobs stored in a single immutable file, PACK-ID.pack, next to
+ *  a sorted index, PACK-ID.idx, mapping each blob id to its offset.  Both are
+ *  memory-mapped while open.  An entry either holds the full contents of a
+ *  blob or a Delta against an earlier entry of the same pack (usually a
+ *  newer version of the same file), so chains of versions are stored once.
+ *
+ *  @author Han Liang
+ */
+class PackFile {
+
+    /** Magic number at the start of a pack index. */
+    private static final int INDEX_MAGIC = 0x47504b49;
+    /** Version of the pack format. */
+    private static final int VERSION = 1;
+    /** Entry holding the full contents of a blob. */
+    private static final byte FULL = 1;
+    /** Entry holding a delta against another entry of the pack. */
+    private static final byte DELTA = 2;
+    /** Length in bytes of a raw object id. */
+    private static final int ID_BYTES = UID_LENGTH / 2;
+    /** Start of the fan-out table in the index: magic, version and count. */
+    private static final int FANOUT = 12;
+    /** Start of the sorted ids in the index. */
+    private static final int IDS = FANOUT + 256 * 4;
+
+    /** The pack file. */
+    private final File file;
+    /** The mapped pack and index files. */
+    private final MappedByteBuffer pack;
+    private final MappedByteBuffer index;
+    /** The number of blobs in this pack. */
+    private final int count;
+
+    /** Open the pack whose index is INDEXFILE. */
+    PackFile(File indexFile) {
+        String name = indexFile.getName();
+        file = join(indexFile.getParentFile(), name.substring(0, name.length() - 4) + ".pack");
+        pack = map(file);
+        index = map(indexFile);
+        if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("bad pack index " + name);
+        }
+        count = index.getInt(8);
+    }
+
+    /** Return the pack file. */
+    File file() {
+        return file;
+    }
+
+    /** Return the number of blobs in this pack. */
+    int size() {
+        return count;
+    }
+
+    /** Return the id of the K-th blob of this pack in sorted order. */
+    String id(int k) {
+        byte[] id = new byte[ID_BYTES];
+        index.get(IDS + k * ID_BYTES, id);
+        return bytesToHex(id, 0, ID_BYTES);
+    }
+
+    /** Return true iff this pack holds the blob ID. */
+    boolean contains(String id) {
+        return find(id) >= 0;
+    }
+
+    /** Return the contents of the blob ID, or null if it is not here. */
+    byte[] read(String id) {
+        int k = find(id);
+        if (k < 0) {
+            return null;
+        }
+        int offset = index.getInt(IDS + count * ID_BYTES + k * 4);
+        Deque<Integer> deltas = new ArrayDeque<>();
+        while (pack.get(offset) == DELTA) {
+            deltas.push(offset);
+            offset = pack.getInt(offset + 9);
+        }
+        byte[] content = data(offset, 9);
+        while (!deltas.isEmpty()) {
+            content = Delta.apply(content, data(deltas.pop(), 13));
+        }
+        return content;
+    }
+
+    /** Return the data of the entry at OFFSET, whose header is HEADER bytes. */
+    private byte[] data(int offset, int header) {
+        byte[] result = new byte[pack.getInt(offset + 5)];
+        pack.get(offset + header, result);
+        return result;
+    }
+
+    /** Return the position of ID in the sorted ids, or -1 if it is absent. */
+    private int find(String id) {
+        byte[] key = hexToBytes(id);
+        int first = key[0] & 0xff;
+        int lo = first == 0 ? 0 : index.getInt(FANOUT + (first - 1) * 4);
+        int hi = index.getInt(FANOUT + first * 4) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(mid, key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Compare the K-th sorted id with KEY. */
+    private int compare(int k, byte[] key) {
+        int start = IDS + k * ID_BYTES;
+        for (int i = 0; i < ID_BYTES; i += 1) {
+            int cmp = Integer.compare(index.get(start + i) & 0xff, key[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /** Map FILE read-only into memory. */
+    private static MappedByteBuffer map(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                                                    StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Writes a new pack into a directory.  Blobs are appended in the order
+     *  they are added; a delta may only refer to a blob added before it. */
+    static class Writer {
+
+        /** The directory of packs. */
+        private final File dir;
+        /** The pack being written, under a temporary name. */
+        private final File temp;
+        private final DataOutputStream out;
+        /** Offsets of the blobs written so far. */
+        private final HashMap<String, Integer> offsets = new HashMap<>();
+        /** Number of bytes written so far. */
+        private int size;
+
+        /** Start a new pack in DIR. */
+        Writer(File dir) {
+            this.dir = dir;
+            try {
+                dir.mkdirs();
+                temp = File.createTempFile("pack", ".tmp", dir);
+                out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temp.toPath())));
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+
+        /** Return the number of bytes written so far. */
+        int size() {
+            return size;
+        }
+
+        /** Add blob ID with CONTENT.  If BASEID names a blob already in this
+         *  pack whose contents are BASE, store CONTENT as a delta against it
+         *  when that is smaller.  Return true iff a delta was stored. */
+        boolean add(String id, byte[] content, String baseId, byte[] base) {
+            try {
+                offsets.put(id, size);
+                if (baseId != null && offsets.containsKey(baseId)) {
+                    byte[] delta = Delta.create(base, content);
+                    if (delta.length < content.length / 2) {
+                        out.writeByte(DELTA);
+                        out.writeInt(content.length);
+                        out.writeInt(delta.length);
+                        out.writeInt(offsets.get(baseId));
+                        out.write(delta);
+                        size += 13 + delta.length;
+                        return true;
+                    }
+                }
+                out.writeByte(FULL);
+                out.writeInt(content.length);
+                out.writeInt(content.length);
+                out.write(content);
+                size += 9 + content.length;
+                return false;
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+
+        /** Finish the pack, give it its final name and write its index.
+         *  Return that name, or null if the pack is empty. */
+        String finish() {
+            try {
+                out.close();
+                if (offsets.isEmpty()) {
+                    temp.delete();
+                    return null;
+                }
+                TreeMap<String, Integer> sorted = new TreeMap<>(offsets);
+                String name = "pack-" + sha1(String.join("", sorted.keySet()));
+                Files.move(temp.toPath(), join(dir, name + ".pack").toPath(),
+                           StandardCopyOption.REPLACE_EXISTING);
+
+                List<String> ids = new ArrayList<>(sorted.keySet());
+                int[] fanout = new int[256];
+                for (String id : ids) {
+                    fanout[Integer.parseInt(id.substring(0, 2), 16)] += 1;
+                }
+                File indexTemp = File.createTempFile("idx", ".tmp", dir);
+                try (DataOutputStream idx = new DataOutputStream(
+                         new BufferedOutputStream(
+                             Files.newOutputStream(indexTemp.toPath())))) {
+                    idx.writeInt(INDEX_MAGIC);
+                    idx.writeInt(VERSION);
+                    idx.writeInt(ids.size());
+                    int total = 0;
+                    for (int n : fanout) {
+                        total += n;
+                        idx.writeInt(total);
+                    }
+                    for (String id : ids) {
+                        idx.write(hexToBytes(id));
+                    }
+                    for (String id : ids) {
+                        idx.writeInt(sorted.get(id));
+                    }
+                }
+                Files.move(indexTemp.toPath(), join(dir, name + ".idx").toPath(),
+                           StandardCopyOption.REPLACE_EXISTING);
+                return name;
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+    }
+}
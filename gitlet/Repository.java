@@ -1,533 +1,1114 @@
 package gitlet;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static gitlet.Utils.*;
 
-/** Represents a gitlet repository.
- *  TODO: It's a good idea to give a description here of what else this Class
- *  does at a high level.
+/** A gitlet repository: the working directory and the .gitlet directory
+ *  in it.  Each command is a method, which throws a GitletException
+ *  holding the message to report if it fails.  All of its state is kept in
+ *  the instance, so several repositories can be open in one JVM, but each
+ *  is only safe to use from one thread at a time.
  *
  *  @author Han Liang
  */
-public class Repository {
-    /**
-     * List all instance variables of the Repository class here with a useful
-     * comment above them describing what that variable represents and how that
-     * variable is used. We've provided two examples for you.
-     */
-
-    /** The current working directory. */
-    public static final File CWD = new File(System.getProperty("user.dir"));
+class Repository {
+
+    /** The working directory. */
+    final File workDir;
     /** The .gitlet directory. */
-    public static final File GITLET_DIR = join(CWD, ".gitlet");
+    final File gitletDir;
+    /** The journal that HEAD, the branches and the index are written
+     *  through, and that new objects are made durable by. */
+    final Journal journal;
 
     /** Commit directory. */
-    static final File COMMIT_DIR = join(GITLET_DIR, "commits");
-    /** Staged for add directory. */
-    static final File STAGED_DIR = join(GITLET_DIR, "index");
-    /** Staged for removal directory. */
-    static final File STAGED_RM_DIR = join(GITLET_DIR, "removal");
+    final File commitDir;
+    /** Staged for add directory of format 4 and earlier. */
+    final File oldStagedDir;
+    /** Where that directory is moved while it is migrated, since the index
+     *  takes its place. */
+    final File movedStagedDir;
+    /** Staged for removal directory of format 4 and earlier. */
+    final File oldStagedRmDir;
+    /** The staging area, which replaced both directories in format 5. */
+    final Index index;
     /** Blob directory. */
-    static final File BLOB_DIR = join(GITLET_DIR, "objects");
+    final File blobDir;
+    /** The blobs, loose or packed. */
+    final ObjectStore blobs;
     /** Reference to heads and branches. */
-    static final File HEADS_DIR = join(GITLET_DIR, "heads");
+    final File headsDir;
     /** Reference to the HEAD. */
-    static final File HEAD = join(GITLET_DIR, "HEAD");
+    final File head;
+    /** On-disk format version of the repository; absent in format 1. */
+    final File formatFile;
+    /** The commits. */
+    final ObjectStore commits;
+    /** The trees of the commits, one per directory. */
+    final Tree trees;
+    /** The parents, dates and generations of the commits. */
+    final CommitGraph graph;
+    /** HEAD, the refs and the commits read so far. */
+    final Session session;
+    /** Writes commits into the working directory. */
+    final Checkout checkout;
+    /** The blob ids of the working files, as of their last hashing. */
+    final StatCache statCache;
+
+    /** Format written by new repositories: 1 stores objects raw, 2 stores
+     *  loose objects compressed, 3 also shards them into subdirectories, 4 adds
+     *  the commit graph, 5 keeps the staging area in a single index file, 6
+     *  stores the files of new commits as trees, 7 writes commits in their
+     *  own binary encoding instead of Java serialization, 8 keeps filters
+     *  of the paths each commit changes. */
+    static final int CURRENT_FORMAT = 8;
+    /** Fewest hex digits accepted as an abbreviated commit id. */
+    static final int MIN_ABBREV = 4;
+    /** Number of commits log reads at a time, at first and at most. */
+    private static final int LOG_FIRST_CHUNK = 16, LOG_CHUNK = 256;
+    /** Number of chunks of commits log reads ahead of those it lists. */
+    private static final int LOG_PREFETCH = 4;
+    /** Format of this repository, read on first use. */
+    private int formatVersion;
+    /** Number of commits in the graph when the outermost transaction
+     *  began. */
+    private int graphSize;
+    /** The stamp of the .gitlet directory when the last command ended. */
+    private String stamp;
+
+    /** The repository whose working directory is WORKDIR, which need not
+     *  exist yet. */
+    Repository(File workDir) {
+        this.workDir = workDir.getAbsoluteFile().toPath().normalize().toFile();
+        gitletDir = join(this.workDir, ".gitlet");
+        journal = new Journal(gitletDir);
+        commitDir = join(gitletDir, "commits");
+        oldStagedDir = join(gitletDir, "index");
+        oldStagedRmDir = join(gitletDir, "removal");
+        movedStagedDir = join(gitletDir, "index.old");
+        index = new Index(join(gitletDir, "index"), journal);
+        blobDir = join(gitletDir, "objects");
+        blobs = new ObjectStore(blobDir, this);
+        headsDir = join(gitletDir, "heads");
+        head = join(gitletDir, "HEAD");
+        formatFile = join(gitletDir, "format");
+        commits = new ObjectStore(commitDir, this);
+        trees = new Tree(new ObjectStore(join(gitletDir, "trees"), this));
+        graph = new CommitGraph(join(gitletDir, "commit-graph"),
+                                join(gitletDir, "commit-index"),
+                                join(gitletDir, "commit-paths"));
+        session = new Session(head, headsDir, journal, this::loadCommit);
+        checkout = new Checkout(this.workDir, join(gitletDir, "checkout"), blobs);
+        statCache = new StatCache(join(gitletDir, "stat-cache"));
+    }
 
-    public static void setupPersistence() throws IOException {
-        if(GITLET_DIR.exists()) {
-            System.out.println("A Gitlet version-control system already exists in the current directory.");
-            System.exit(0);
+    /** Create the .gitlet directory and the initial commit. */
+    void setupPersistence() {
+        if(gitletDir.exists()) {
+            throw error("A Gitlet version-control system already exists in the current directory.");
         }
 
-        GITLET_DIR.mkdirs();
-        COMMIT_DIR.mkdirs();
-        STAGED_DIR.mkdirs();
-        STAGED_RM_DIR.mkdirs();
-        BLOB_DIR.mkdirs();
-        HEADS_DIR.mkdirs();
+        gitletDir.mkdirs();
+        commitDir.mkdirs();
+        blobDir.mkdirs();
+        headsDir.mkdirs();
 
-        File master = join(HEADS_DIR,"master");
-        HEAD.createNewFile();
-        master.createNewFile();
-        writeContents(HEAD, master.getPath());
+        writeContents(formatFile, Integer.toString(CURRENT_FORMAT));
+        File master = join(headsDir,"master");
+        session.setHead(master);
 
+        index.write();
+        graph.rebuild(Map.of());
         Commit init = new Commit();
         saveCommit(init);
     }
 
-    public static void add(String fileName) {
-        File fileAdded = join(CWD, fileName);
-
-        if (!fileAdded.exists()) {
-            System.out.println("File does not exist.");
-            System.exit(0);
+    /** Stage the given files, and every file under the given directories.
+     * The files are hashed and stored in parallel, then staged together. */
+    void add(String... paths) {
+        TreeSet<String> fileNames = new TreeSet<>();
+        for (String path : paths) {
+            File fileAdded = workingFile(path);
+            if (!fileAdded.exists()) {
+                throw error("File does not exist.");
+            }
+            fileNames.addAll(workingFiles(fileAdded));
         }
 
         Commit commit = HEADCommit();
-        byte[] fileContent = readContents(fileAdded);
-        fileAdded = join(STAGED_DIR, fileName);
+        Map<String, String> refBlobs = new ConcurrentHashMap<>();
+        fileNames.parallelStream().forEach(fileName -> {
+            File fileAdded = join(workDir, fileName);
+            String refBlob = statCache.cachedId(fileName, fileAdded);
+            if (refBlob == null || !blobs.contains(refBlob)) {
+                refBlob = blobs.write(fileAdded);
+                statCache.put(fileName, fileAdded, refBlob);
+            }
+            refBlobs.put(fileName, refBlob);
+        });
 
-        if (commit.trees.containsKey(fileName)) {
-            if (commit.trees.get(fileName).equals(sha1(fileContent))) {
-                fileAdded.delete();
-                return;
+        for (String fileName : fileNames) {
+            String refBlob = refBlobs.get(fileName);
+            if (refBlob.equals(commit.getBlob(trees, fileName))) {
+                index.unstage(fileName);
+            } else {
+                index.add(fileName, refBlob, join(workDir, fileName));
             }
         }
-
-        writeContents(fileAdded, fileContent);
+        index.write();
+        statCache.write();
     }
 
-    public static void newCommit(String message) {
-        repoExist();
+    /** Commit the staged files with the given message, and return the ref
+     * of the new commit. */
+    String newCommit(String message) {
         if (emptyIndex()) {
-            System.out.println("No changes added to the commit.");
-            System.exit(0);
+            throw error("No changes added to the commit.");
         }
 
-        Commit commit = new Commit(message);
-        saveCommit(commit);
+        String tree = trees.apply(HEADCommit().getTree(trees), index.changes());
+        Commit commit = new Commit(message, refHEADCommit(), tree);
+        String refCommit = saveCommit(commit);
         emptyStage();
+        return refCommit;
     }
 
 
-    public static void remove(String fileName) throws IOException {
-        repoExist();
+    void remove(String fileName) {
         Commit commit = HEADCommit();
-        File file = join(STAGED_DIR, fileName);
-        boolean exist = file.delete();
-        if (commit.trees.containsKey(fileName)) {
-            file = join(STAGED_RM_DIR, fileName);
-            file.createNewFile();
-            file = join(CWD, fileName);
-            restrictedDelete(file);
+        boolean exist = index.unstage(fileName);
+        String refBlob = commit.getBlob(trees, fileName);
+        if (refBlob != null) {
+            index.remove(fileName, refBlob);
+            restrictedDelete(workDir, fileName);
             exist = true;
         }
         if (!exist) {
-            System.out.println("No reason to remove the file.");
-            System.exit(0);
+            throw error("No reason to remove the file.");
         }
+        index.write();
     }
 
-    public static void log() {
-        repoExist();
+    /** Call the given action with the log entries of the HEAD commit and
+     * its first parents that the filter lets through, newest first. */
+    void log(Gitlet.LogFilter filter, Consumer<Gitlet.LogEntry> action) {
+        int head = graph.indexOf(refHEADCommit());
+        log(IntStream.iterate(head, k -> k != CommitGraph.NONE, graph::parent).iterator(),
+            filter, action);
+    }
 
-        String refCommit = readContentsAsString(HEADPointer());
-        Commit commit;
-        while (refCommit != null) {
-            commit = readObject(join(COMMIT_DIR, refCommit), Commit.class);
-            System.out.println("===");
-            System.out.println("commit " + refCommit);
-            if (commit.getSecondParent() != null) {
-                System.out.println("Merge: " + commit.getParent().substring(0, 7) + " " + commit.getSecondParent().substring(0, 7));
+    /** Call the given action with the log entries of all commits that the
+     * filter lets through, latest added to the commit graph first. */
+    void globalLog(Gitlet.LogFilter filter, Consumer<Gitlet.LogEntry> action) {
+        int size = graph.size();
+        log(IntStream.range(0, size).map(k -> size - 1 - k).iterator(), filter, action);
+    }
+
+    /** Call the given action with the log entries of the commits at the
+     * given positions in the commit graph that the filter lets through, in
+     * order, as soon as they are read. Dates are filtered in the graph, so
+     * only the commits in range are read. With a path, a commit is listed
+     * if it changes what its first parent has there; only the commits whose
+     * changed-path filters say they may are read, and their trees are then
+     * compared to rule out false positives. They are read in chunks, the
+     * first of LOG_FIRST_CHUNK and each next one twice as large up to
+     * LOG_CHUNK, and never more than the limit still allows; LOG_PREFETCH
+     * chunks are read in the background while the action runs, and those
+     * still pending when the log ends are stopped and waited for, so that
+     * nothing reads the repository once it returns. A commit alone is read
+     * too fast to be worth handing to another thread. */
+    private void log(PrimitiveIterator.OfInt positions, Gitlet.LogFilter filter,
+                     Consumer<Gitlet.LogEntry> action) {
+        long since = filter.since() == null ? Long.MIN_VALUE : filter.since().getTime();
+        long until = filter.until() == null ? Long.MAX_VALUE : filter.until().getTime();
+        String path = filter.path();
+        ChangedPaths changedPaths = graph.changedPaths();
+        // Without grep or a path, every commit read is listed, so those
+        // queued count against the limit.
+        boolean exact = filter.grep() == null && path == null;
+        AtomicBoolean stopped = new AtomicBoolean();
+        Deque<CompletableFuture<List<Gitlet.LogEntry>>> ahead = new ArrayDeque<>();
+        int size = LOG_FIRST_CHUNK;
+        int listed = 0, queued = 0;
+        try {
+            while (listed != filter.limit()) {
+                while (ahead.size() <= LOG_PREFETCH && positions.hasNext()) {
+                    int wanted = filter.limit() < 0 ? size
+                        : Math.min(size, filter.limit() - listed - queued);
+                    if (wanted <= 0) {
+                        break;
+                    }
+                    List<String> chunk = new ArrayList<>(wanted);
+                    while (chunk.size() < wanted && positions.hasNext()) {
+                        int k = positions.nextInt();
+                        if (graph.date(k) >= since && graph.date(k) <= until
+                            && (path == null || changedPaths.mayChange(k, path))) {
+                            chunk.add(graph.id(k));
+                        }
+                    }
+                    size = Math.min(2 * size, LOG_CHUNK);
+                    if (exact) {
+                        queued += chunk.size();
+                    }
+                    ahead.add(CompletableFuture.supplyAsync(() -> logEntries(chunk, path, stopped)));
+                }
+                if (ahead.isEmpty()) {
+                    break;
+                }
+                List<Gitlet.LogEntry> entries;
+                try {
+                    entries = ahead.remove().join();
+                } catch (CompletionException excp) {
+                    throw excp.getCause() instanceof RuntimeException cause ? cause : excp;
+                }
+                if (exact) {
+                    queued -= entries.size();
+                }
+                for (Gitlet.LogEntry entry : entries) {
+                    if (listed != filter.limit()
+                        && (filter.grep() == null || filter.grep().matcher(entry.message()).find())) {
+                        action.accept(entry);
+                        listed += 1;
+                    }
+                }
+            }
+        } finally {
+            stopped.set(true);
+            for (CompletableFuture<List<Gitlet.LogEntry>> pending : ahead) {
+                try {
+                    pending.join();
+                } catch (CompletionException excp) {
+                    // Its entries are not wanted anyway.
+                }
             }
-            System.out.println(String.format("Date: %1$ta %1$tb %1$td %1$tT %1$tY %1$tz", commit.getDate()));
-            System.out.println(commit.getMessage());
-            System.out.println("");
-            refCommit = commit.getParent();
         }
     }
 
-    public static void globalLog() {
-        repoExist();
-
-        for (String refCommit : plainFilenamesIn(COMMIT_DIR)) {
-            Commit commit = readObject(join(COMMIT_DIR, refCommit), Commit.class);
-            System.out.println("===");
-            System.out.println("commit " + refCommit);
-            if (commit.getSecondParent() != null) {
-                System.out.println("Merge: " + commit.getParent().substring(0, 7) + " " + commit.getSecondParent().substring(0, 7));
+    /** Return the log entries of the commits CHUNK, leaving out those that
+     * do not change PATH unless it is null, and stopping early once STOPPED
+     * is set. */
+    private List<Gitlet.LogEntry> logEntries(List<String> chunk, String path,
+                                             AtomicBoolean stopped) {
+        List<Gitlet.LogEntry> entries = new ArrayList<>(chunk.size());
+        for (String refCommit : chunk) {
+            if (stopped.get()) {
+                break;
+            }
+            Commit commit = readCommit(refCommit);
+            if (path == null || changes(commit, path)) {
+                entries.add(logEntry(refCommit, commit));
             }
-            System.out.println(String.format("Date: %1$ta %1$tb %1$td %1$tT %1$tY %1$tz", commit.getDate()));
-            System.out.println(commit.getMessage());
-            System.out.println("");
         }
+        return entries;
     }
 
-    public static void checkoutFile(String fileName, String refCommit) {
-        repoExist();
-        File commitFile = join(COMMIT_DIR, refCommit);
-        if (!commitFile.exists()) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
-        }
-        Commit commit = readObject(commitFile, Commit.class);
-        if (!commit.trees.containsKey(fileName)) {
-            System.out.println("File does not exist in that commit.");
-            System.exit(0);
+    /** Return true iff the commit changes the file or directory at PATH
+     * from its first parent, or from nothing if it has none. */
+    private boolean changes(Commit commit, String path) {
+        return !Objects.equals(trees.find(commit.getTree(trees), path),
+                               trees.find(parentTree(commit), path));
+    }
+
+    /** Return the tree of the first parent of the commit, or the empty tree
+     * if it has none. */
+    private String parentTree(Commit commit) {
+        return commit.getParent() == null ? Tree.EMPTY : readCommit(commit.getParent()).getTree(trees);
+    }
+
+    void checkoutFile(String fileName, String refCommit) {
+        refCommit = findCommit(refCommit);
+        Commit commit = readCommit(refCommit);
+        String refBlob = commit.getBlob(trees, fileName);
+        if (refBlob == null) {
+            throw error("File does not exist in that commit.");
         }
-        File file = join(BLOB_DIR, commit.trees.get(fileName));
-        byte[] fileContent = readContents(file);
-        file = join(CWD, fileName);
-        writeContents(file, fileContent);
+        blobs.copyTo(refBlob, join(workDir, fileName));
     }
 
-    public static void checkoutBranch(String branchName) {
-        repoExist();
+    void checkoutBranch(String branchName) {
         String currentBranch = HEADPointer().getName();
         if (currentBranch.equals(branchName)) {
-            System.out.println("No need to checkout the current branch.");
-            System.exit(0);
+            throw error("No need to checkout the current branch.");
         }
 
-        File branchFile = join(HEADS_DIR, branchName);
-        if (!branchFile.exists()) {
-            System.out.println("No such branch exists.");
-            System.exit(0);
+        String refCommit = session.branch(branchName);
+        if (refCommit == null) {
+            throw error("No such branch exists.");
         }
 
-        String refCommit = readContentsAsString(branchFile);
-        Commit commit = readObject(join(COMMIT_DIR, refCommit), Commit.class);
+        Commit commit = readCommit(refCommit);
         checkOutCommit(commit);
 
-        writeContents(HEAD, branchFile.getPath());
+        session.setHead(join(headsDir, branchName));
         emptyStage();
     }
 
-    // TODO: Finish status command.
-    public static void status() {
-        repoExist();
-
-        System.out.println("=== Branches ===");
-        for(String branchName : plainFilenamesIn(HEADS_DIR)) {
-            if (branchName.equals(HEADPointer().getName())) {
-                System.out.println("*" + branchName);
-            } else {
-                System.out.println(branchName);
+    /** Return the branches, the staged files, and the working files that
+     * differ from the staged or tracked ones. */
+    Gitlet.Status status() {
+        String currentBranch = HEADPointer().getName();
+        Map<String, String> tracked = HEADCommit().files(trees);
+        Map<String, String> working = workingBlobs();
+        List<String> modified = new ArrayList<>();
+        List<String> deleted = new ArrayList<>();
+        List<String> untracked = new ArrayList<>();
+        TreeSet<String> paths = new TreeSet<>(tracked.keySet());
+        paths.addAll(working.keySet());
+        paths.addAll(index.added());
+        for (String fileName : paths) {
+            Index.Entry staged = index.get(fileName);
+            String refWorking = working.get(fileName);
+            if (staged != null && staged.state == Index.REMOVED) {
+                if (refWorking != null) {
+                    untracked.add(fileName);
+                }
+                continue;
+            }
+            String refExpected = staged != null ? staged.blob : tracked.get(fileName);
+            if (refExpected == null) {
+                untracked.add(fileName);
+            } else if (refWorking == null) {
+                deleted.add(fileName);
+            } else if (!refWorking.equals(refExpected)) {
+                modified.add(fileName);
             }
         }
-        System.out.println();
-        System.out.println("=== Staged Files ===");
-        for(String fileName : plainFilenamesIn(STAGED_DIR)) {
-            System.out.println(fileName);
-        }
-        System.out.println();
-        System.out.println("=== Removed Files ===");
-        for(String fileName : plainFilenamesIn(STAGED_RM_DIR)) {
-            System.out.println(fileName);
-        }
-        System.out.println();
+        return new Gitlet.Status(currentBranch, session.branches(),
+                                 index.added(), index.removed(),
+                                 modified, deleted, untracked);
     }
 
-    public static void branch(String branchName) {
-        repoExist();
-        File branch = join(HEADS_DIR, branchName);
-        if (branch.exists()) {
-            System.out.println("A branch with that name already exists.");
-            System.exit(0);
+    void branch(String branchName) {
+        if (session.branch(branchName) != null) {
+            throw error("A branch with that name already exists.");
+        }
+        if (branchName.endsWith(".lock")) {
+            // The name of the file a branch is written to while it changes.
+            throw error("A branch name cannot end in .lock.");
         }
         String refCurrentHead = refHEADCommit();
-        writeContents(branch, refCurrentHead);
+        session.setBranch(branchName, refCurrentHead);
     }
 
-    public static void rmBranch(String branchName) {
-        repoExist();
-
-        File branch = join(HEADS_DIR, branchName);
-        if (!branch.exists()) {
-            System.out.println("A branch with that name does not exist.");
-            System.exit(0);
+    void rmBranch(String branchName) {
+        if (session.branch(branchName) == null) {
+            throw error("A branch with that name does not exist.");
         }
         if (branchName.equals(HEADPointer().getName())) {
-            System.out.println("Cannot remove the current branch.");
-            System.exit(0);
+            throw error("Cannot remove the current branch.");
         }
-        branch.delete();
+        session.deleteBranch(branchName);
     }
 
-    public static void reset(String refCommit) {
-        repoExist();
-        File commitFile = join(COMMIT_DIR, refCommit);
-        if(!commitFile.exists()) {
-            System.out.println("No commit with that id exists.");
-            System.exit(0);
-        }
-
-        Commit commit = readObject(commitFile, Commit.class);
+    void reset(String refCommit) {
+        refCommit = findCommit(refCommit);
+        Commit commit = readCommit(refCommit);
         checkOutCommit(commit);
 
-        writeContents(HEADPointer(), refCommit);
+        session.setBranch(HEADPointer().getName(), refCommit);
     }
 
-    // TODO: Finish merge.
-    public static void merge(String branchName) {
-        repoExist();
-
+    /** Merge the given branch into the current one. The merged tree is
+     * computed from the object store first, so nothing is written to the
+     * workDir unless the merge can go ahead; then the files it changes are
+     * checked out and the merge commit is made, conflicts and all. */
+    Gitlet.MergeResult merge(String branchName) {
         if (!emptyIndex()) {
-            System.out.println("You have uncommitted changes.");
-            System.exit(0);
+            throw error("You have uncommitted changes.");
         }
 
-        if (!join(HEADS_DIR, branchName).exists()) {
-            System.out.println("No such branch exists.");
-            System.exit(0);
+        String refGivenBranchHead = session.branch(branchName);
+        if (refGivenBranchHead == null) {
+            throw error("No such branch exists.");
         }
 
         if (branchName.equals(HEADPointer().getName())) {
-            System.out.println("Cannot merge a branch with itself.");
-            System.exit(0);
+            throw error("Cannot merge a branch with itself.");
         }
 
-        String refGivenBranchHead = readContentsAsString(join(HEADS_DIR, branchName));
-        Commit givenBranchHead = readObject(join(COMMIT_DIR, refGivenBranchHead), Commit.class);
-        Commit splitCommit = splitPoint(HEADCommit(), givenBranchHead);
-
-        if (splitCommit.equals(HEADCommit())) {
-            checkoutBranch(branchName);
-            System.out.println("Current branch fast-forwarded.");
-            return;
+        String refSplitCommit = splitPoint(refHEADCommit(), refGivenBranchHead);
+        if (refGivenBranchHead.equals(refSplitCommit)) {
+            return Gitlet.MergeResult.ALREADY_MERGED;
         }
 
-        if (splitCommit.equals(givenBranchHead)) {
-            System.out.println("Given branch is an ancestor of the current branch.");
-            return;
+        Commit givenBranchHead = readCommit(refGivenBranchHead);
+        if (refHEADCommit().equals(refSplitCommit)) {
+            checkOutCommit(givenBranchHead);
+            session.setBranch(HEADPointer().getName(), refGivenBranchHead);
+            return Gitlet.MergeResult.FAST_FORWARDED;
         }
 
-        for (String fileName : plainFilenamesIn(CWD)) {
-            File currentFile = join(CWD, fileName);
-            String refFileContent = sha1(readContents(currentFile));
+        String headTree = HEADCommit().getTree(trees);
+        String splitTree = refSplitCommit == null ? Tree.EMPTY
+            : readCommit(refSplitCommit).getTree(trees);
+        TreeMerge.Result result = new TreeMerge(trees, blobs)
+            .merge(splitTree, headTree, givenBranchHead.getTree(trees));
+        if (result.changes().isEmpty()) {
+            throw error("No changes added to the commit.");
+        }
 
-            if (splitCommit.trees.containsKey(fileName)) {
-                boolean givenChanged = !splitCommit.trees.get(fileName).equals(givenBranchHead.trees.get(fileName));
-                boolean notBothDeleted = HEADCommit().trees.containsKey(fileName) || givenBranchHead.trees.containsKey(fileName);
-                boolean changedFromHead = !refFileContent.equals(HEADCommit().trees.get(fileName));
-                if (givenChanged && notBothDeleted && changedFromHead) {
-                    System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
-                    System.exit(0);
-                }
-            } else if (givenBranchHead.trees.containsKey(fileName)) {
-                boolean changedFromHead = !refFileContent.equals(HEADCommit().trees.get(fileName));
-                if (!givenBranchHead.trees.get(fileName).equals(HEADCommit().trees.get(fileName)) && changedFromHead) {
-                    System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
-                    System.exit(0);
-                }
+        List<String> removed = new ArrayList<>();
+        Map<String, String> changed = new HashMap<>();
+        for (Map.Entry<String, String> change : result.changes().entrySet()) {
+            String fileName = change.getKey();
+            File file = join(workDir, fileName);
+            if (file.isFile()
+                && !statCache.blobId(fileName, file).equals(trees.get(headTree, fileName))) {
+                throw error("There is an untracked file in the way; delete it, or add and commit it first.");
+            }
+            if (change.getValue() == null) {
+                removed.add(fileName);
+            } else {
+                changed.put(fileName, change.getValue());
             }
-            // TODO: Recheck this part.
         }
+        statCache.write();
+        checkout.run(removed, changed);
 
-        Set<String> fixedFiles = new HashSet<>();
-        HashMap<String, String> trees = HEADCommit().trees;
+        String message = "Merged " + branchName + " into " + HEADPointer().getName() + ".";
+        saveCommit(new Commit(message, refHEADCommit(), refGivenBranchHead, result.tree()));
+        return result.conflicts().isEmpty() ? Gitlet.MergeResult.MERGED
+            : Gitlet.MergeResult.CONFLICTED;
+    }
 
-        for (String fileName : HEADCommit().trees.keySet()) {
-            String refContentHEAD = HEADCommit().trees.get(fileName);
-            String refContentSplit = splitCommit.trees.get(fileName);
-            String refContentGiven = givenBranchHead.trees.get(fileName);
+    /** Return the merge of the commits named by the given branch names or
+     * commit ids against their split point, computed without touching the
+     * workDir or the index. */
+    TreeMerge.Result mergeTree(String name1, String name2) {
+        String refCommit1 = resolveCommit(name1);
+        String refCommit2 = resolveCommit(name2);
+        String refSplitCommit = splitPoint(refCommit1, refCommit2);
+        String splitTree = refSplitCommit == null ? Tree.EMPTY
+            : readCommit(refSplitCommit).getTree(trees);
+        return new TreeMerge(trees, blobs).merge(splitTree, readCommit(refCommit1).getTree(trees),
+                                                 readCommit(refCommit2).getTree(trees));
+    }
+
+    /** Return the id of the best common ancestor of the two given commits,
+     * or null if they have none. */
+    String mergeBase(String name1, String name2) {
+        return splitPoint(resolveCommit(name1), resolveCommit(name2));
+    }
 
-            if (refContentSplit == null) {
-                if (refContentGiven != null) {
-                    mergeFile(refContentHEAD, refContentGiven, fileName);
-                    trees.put(fileName, sha1(readContents(join(STAGED_DIR, fileName))));
+    /** Write the differences between two versions of the files to OUT as
+     * a unified diff. With two commits, they are those of the first and of
+     * the second; with one, those of the commit and of the working
+     * directory; with none, those staged and of the working directory.
+     * Only tracked working files are compared, and if PATH is not null,
+     * only the file at PATH or under it. Files whose blob ids are equal are
+     * not read. */
+    void diff(String name1, String name2, String path, OutputStream out) {
+        String filter = path == null ? null : path.replaceAll("/+$", "");
+        OutputStream buffered = new BufferedOutputStream(out, BUFFER_SIZE);
+        try {
+            if (name2 != null) {
+                String tree1 = readCommit(resolveCommit(name1)).getTree(trees);
+                String tree2 = readCommit(resolveCommit(name2)).getTree(trees);
+                for (Map.Entry<String, String[]> file : trees.diff(tree1, tree2).entrySet()) {
+                    if (underPath(file.getKey(), filter)) {
+                        diffFile(file.getKey(), file.getValue()[0], file.getValue()[1], false, buffered);
+                    }
                 }
             } else {
-                if (refContentSplit.equals(refContentHEAD) && !refContentSplit.equals(refContentGiven)) {
-                    if (refContentGiven == null) {
-                        saveFileAs(join(BLOB_DIR, refContentHEAD), STAGED_RM_DIR, fileName);
-                        restrictedDelete(join(CWD, fileName));
-                        trees.remove(fileName);
+                Map<String, String> tracked = HEADCommit().files(trees);
+                for (Map.Entry<String, String> change : index.changes().entrySet()) {
+                    if (change.getValue() == null) {
+                        tracked.remove(change.getKey());
                     } else {
-                        saveFileAs(join(BLOB_DIR, refContentHEAD), STAGED_DIR, fileName);
-                        checkOutToCWD(join(STAGED_DIR, fileName), fileName);
-                        trees.put(fileName, sha1(readContents(join(STAGED_DIR, fileName))));
-                    }
-                } else if (!refContentSplit.equals(refContentHEAD) && !refContentSplit.equals(refContentGiven)) {
-                    if (!refContentHEAD.equals(refContentGiven)) {
-                        mergeFile(refContentHEAD, refContentGiven, fileName);
-                        trees.put(fileName, sha1(readContents(join(STAGED_DIR, fileName))));
+                        tracked.put(change.getKey(), change.getValue());
                     }
                 }
+                Map<String, String> base = name1 == null ? tracked
+                    : readCommit(resolveCommit(name1)).files(trees);
+                TreeSet<String> fileNames = new TreeSet<>(base.keySet());
+                fileNames.addAll(tracked.keySet());
+                fileNames.removeIf(fileName -> !underPath(fileName, filter));
+                for (String fileName : fileNames) {
+                    String refWorking = tracked.containsKey(fileName)
+                        ? statCache.blobId(fileName, join(workDir, fileName)) : null;
+                    diffFile(fileName, base.get(fileName), refWorking, true, buffered);
+                }
+                statCache.write();
             }
-            fixedFiles.add(fileName);
+            buffered.flush();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
         }
+    }
 
-        for (String fileName : givenBranchHead.trees.keySet()) {
-            if (!fixedFiles.contains(fileName)) {
-                String refFileGiven = HEADCommit().trees.get(fileName);
-                if (splitCommit.trees.containsKey(fileName)) {
-                    if (!refFileGiven.equals(splitCommit.trees.get(fileName))) {
-                        mergeFile(null, refFileGiven, fileName);
-                        trees.put(fileName, sha1(readContents(join(STAGED_DIR, fileName))));
-                    }
-                } else {
-                    saveFileAs(join(BLOB_DIR, refFileGiven), STAGED_DIR, fileName);
-                    checkOutToCWD(join(STAGED_DIR, fileName), fileName);
-                    // TODO: Checkout the file to CWD.
-                    trees.put(fileName, sha1(readContents(join(STAGED_DIR, fileName))));
-                }
+    /** Write the diff of the given file from the blob OLD to the blob NOW
+     * to OUT, either of which may be null for a missing file. The new
+     * version is read from the working directory if WORKING. */
+    private void diffFile(String fileName, String refOld, String refNew, boolean working,
+                          OutputStream out) throws IOException {
+        if (Objects.equals(refOld, refNew)) {
+            return;
+        }
+        ByteBuffer old = readBlob(refOld);
+        ByteBuffer now = refNew != null && working ? Diff.map(join(workDir, fileName))
+            : readBlob(refNew);
+        Diff.write(refOld == null ? "/dev/null" : "a/" + fileName, old,
+                   refNew == null ? "/dev/null" : "b/" + fileName, now, out);
+    }
+
+    /** Return the contents of the given blob, or nothing if it is null. */
+    private ByteBuffer readBlob(String refBlob) throws IOException {
+        if (refBlob == null) {
+            return ByteBuffer.allocate(0);
+        }
+        try (InputStream in = blobs.open(refBlob)) {
+            return Diff.load(in);
+        }
+    }
+
+    /** Return true iff the file is the given path or under it, or the path
+     * is null. */
+    private static boolean underPath(String fileName, String path) {
+        return path == null || fileName.equals(path) || fileName.startsWith(path + "/");
+    }
+
+    /** Return the log entry of the given commit. */
+    private static Gitlet.LogEntry logEntry(String refCommit, Commit commit) {
+        return new Gitlet.LogEntry(refCommit, commit.getParent(), commit.getSecondParent(),
+                                   commit.getDate(), commit.getMessage());
+    }
+
+    /** Pack all blobs, storing the versions of each file as a chain of deltas
+     *  from the newest version back. */
+    void repack() {
+        // Loose objects the journal would restore are about to be deleted.
+        journal.checkpoint();
+        blobs.repack(blobChains());
+    }
+
+    /** Delete the commits, trees and blobs that neither a branch, HEAD nor
+     * the staging area can reach and that were stored more than GRACE
+     * milliseconds ago, and return how many of each went and the bytes
+     * freed. Commits and trees stored more recently are kept along with
+     * everything they reach, so that the commit graph can be rebuilt from
+     * the commits kept. The commits are walked in the commit graph, and
+     * the trees of those reached are then marked in parallel. */
+    Gitlet.Collected gc(long grace) {
+        if (journal.nested()) {
+            // An enclosing command that failed could not put the graph back.
+            throw new IllegalStateException("gc cannot run inside a batch");
+        }
+        // Loose objects the journal would restore are about to be deleted.
+        journal.checkpoint();
+        long cutoff = System.currentTimeMillis() - grace;
+
+        Deque<Integer> pending = new ArrayDeque<>();
+        for (String branchName : session.branches()) {
+            pending.push(graph.indexOf(session.branch(branchName)));
+        }
+        pending.push(graph.indexOf(refHEADCommit()));
+        commits.ids().filter(refCommit -> commits.looseFile(refCommit).lastModified() >= cutoff)
+            .toList().forEach(refCommit -> pending.push(graph.indexOf(refCommit)));
+        BitSet reached = new BitSet(graph.size());
+        while (!pending.isEmpty()) {
+            int k = pending.pop();
+            if (k != CommitGraph.NONE && !reached.get(k)) {
+                reached.set(k);
+                pending.push(graph.parent(k));
+                pending.push(graph.secondParent(k));
             }
         }
+        Map<String, Commit> live = reached.stream().parallel().mapToObj(graph::id)
+            .collect(Collectors.toConcurrentMap(refCommit -> refCommit, this::readCommit));
 
-        if (emptyIndex()) {
-            System.out.println("No changes added to the commit.");
-            System.exit(0);
+        Set<String> roots = new HashSet<>();
+        for (Commit commit : live.values()) {
+            // Writes the trees of commits from before format 6.
+            roots.add(commit.getTree(trees));
+        }
+        trees.store().ids().filter(refTree -> trees.store().looseFile(refTree).lastModified() >= cutoff)
+            .toList().forEach(roots::add);
+        Set<String> liveTrees = ConcurrentHashMap.newKeySet();
+        Set<String> liveBlobs = ConcurrentHashMap.newKeySet();
+        roots.parallelStream().forEach(refTree -> trees.mark(refTree, liveTrees, liveBlobs));
+        for (String refBlob : index.changes().values()) {
+            if (refBlob != null) {
+                liveBlobs.add(refBlob);
+            }
         }
 
-        // TODO: Merge commit.
-        Commit commit = new Commit(branchName, trees);
-        saveCommit(commit);
-        emptyStage();
+        graph.rebuild(live);
+        graphSize = graph.size();
+        indexChangedPaths();
+        long size = commits.size() + trees.store().size() + blobs.size();
+        int deadCommits = commits.prune(live.keySet(), cutoff, List::of);
+        int deadTrees = trees.store().prune(liveTrees, cutoff, List::of);
+        int deadBlobs = blobs.prune(liveBlobs, cutoff, this::blobChains);
+        long freed = size - commits.size() - trees.store().size() - blobs.size();
+        invalidateCaches();
+        return new Gitlet.Collected(deadCommits, deadTrees, deadBlobs, freed);
+    }
+
+    /** Return the versions of each file committed, newest first, as the
+     * chains of deltas repack stores them in. */
+    private List<List<String>> blobChains() {
+        List<Commit> history = new ArrayList<>();
+        for (String refCommit : commits.looseIds()) {
+            history.add(readCommit(refCommit));
+        }
+        history.sort((a, b) -> b.getDate().compareTo(a.getDate()));
+
+        Map<String, Set<String>> versions = new TreeMap<>();
+        Set<String> visited = new HashSet<>();
+        for (Commit commit : history) {
+            trees.forEachFile(commit.getTree(trees), "", visited, (fileName, refBlob) ->
+                versions.computeIfAbsent(fileName, k -> new LinkedHashSet<>()).add(refBlob));
+        }
+        List<List<String>> chains = new ArrayList<>();
+        for (Set<String> chain : versions.values()) {
+            chains.add(new ArrayList<>(chain));
+        }
+        return chains;
     }
 
     /** Helper methods */
 
-    /** Check out file to CWD. */
-    private static void checkOutToCWD(File file, String fileName) {
-        byte[] content = readContents(file);
-        File fileCWD = join(CWD, fileName);
-        writeContents(fileCWD, content);
+    /** Empty the staged area in the repository. */
+    void emptyStage() {
+        index.clear();
+        index.write();
     }
 
-    /** Generate a merged file for solving the conflict to the STAGED_DIR.
-     * The merged file is also checked out to the CWD. */
-    private static void mergeFile(String refFile1, String refFile2, String fileName) {
-        File fileStaged = join(STAGED_DIR, fileName);
-        String HEADLine = "<<<<<<< HEAD" + "\n";
-        String middleLine = "=======" + "\n";
-        String endLine = ">>>>>>>" + "\n";
-        String content = HEADLine + fileContent(refFile1) + middleLine + fileContent(refFile2) + endLine;
-        writeContents(fileStaged, content);
-        checkOutToCWD(fileStaged, fileName);
+    /** Begin a command, as a transaction nested in any already begun.  The
+     * outermost one takes the lock of the repository, exclusively if
+     * EXCLUSIVE, and drops the caches if another process changed the
+     * repository since the last command. */
+    void begin(boolean exclusive) {
+        if (!journal.active()) {
+            journal.lock.acquire(exclusive);
+            if (!stamp().equals(stamp)) {
+                invalidateCaches();
+            }
+            graphSize = graph.exists() ? graph.size() : 0;
+        } else if (exclusive && !journal.lock.heldExclusively()) {
+            throw new IllegalStateException("command nested in one holding a shared lock");
+        }
+        session.begin();
+        journal.begin();
     }
 
-    /** Read content as string from a file named fileName in the BLOB directory. */
-    private static String fileContent(String fileName) {
-        if (fileName == null) {
-            return "";
+    /** Finish the innermost command, writing the changes of the outermost
+     * one and releasing the lock when it is done. */
+    void commit() {
+        try {
+            journal.commit();
+            if (!journal.active()) {
+                stamp = stamp();
+            }
+        } catch (RuntimeException | Error excp) {
+            // The journal rolled back what it could not record, and finishes
+            // what it recorded on the next open.
+            graph.truncate(graphSize);
+            invalidateCaches();
+            throw excp;
+        } finally {
+            if (!journal.active()) {
+                journal.lock.release();
+            }
         }
-        File file = join(BLOB_DIR, fileName);
-        return readContentsAsString(file);
     }
 
-    /** Stage a file by adding it to directory as given name. Directories are usually STAGED_DIR or STAGED_RM_DIR.
-     * Should check out the file to the CWD after staged for add, and delete the file from CWD after staged for
-     * remove. */
-    // TODO: Use this function in remove method and others.
-    private static void saveFileAs(File fileName, File dir, String savedFileName) {
-        byte[] fileContent = readContents(fileName);
-        writeContents(join(dir, savedFileName), fileContent);
+    /** Roll back the outermost command after the innermost one failed,
+     * dropping the objects and commits it created. */
+    void abort() {
+        try {
+            journal.abort();
+            graph.truncate(graphSize);
+            invalidateCaches();
+        } finally {
+            if (!journal.active()) {
+                journal.lock.release();
+            }
+        }
     }
 
-    /** Empty the staged area in the repository. */
-    public static void emptyStage() {
-        for (String fileName : plainFilenamesIn(STAGED_DIR)) {
-            join(STAGED_DIR, fileName).delete();
+    /** Check if the repository exists, i.e., the .gitlet directory exists,
+     * finish or roll back whatever a crash interrupted, and bring its format
+     * up to date, holding the lock exclusively meanwhile. */
+    void repoExist() {
+        if(!gitletDir.exists()) {
+            throw error("Not in an initialized Gitlet directory.");
         }
-        for (String fileName : plainFilenamesIn(STAGED_RM_DIR)) {
-            join(STAGED_RM_DIR, fileName).delete();
+        journal.lock.acquire(true);
+        try {
+            if (journal.recover()) {
+                // Commits appended to the graph may have been lost or rolled back.
+                rebuildGraph();
+            }
+            if (formatVersion() < CURRENT_FORMAT) {
+                upgradeFormat();
+            }
+        } finally {
+            journal.lock.release();
         }
     }
 
-    /** Check if the repository exists, i.e., the .gitlet directory exists. */
-    public static void repoExist() {
-        if(!GITLET_DIR.exists()) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+    /** Return a summary of the metadata of the files of the .gitlet
+     * directory whose contents are cached, which changes whenever one of
+     * them is rewritten, added or deleted. */
+    private String stamp() {
+        StringBuilder result = new StringBuilder();
+        for (File dir : new File[] {
+                gitletDir, headsDir, join(blobDir, "pack"), join(commitDir, "pack")}) {
+            File[] files = dir.listFiles(File::isFile);
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                try {
+                    result.append(file.getName()).append(' ').append(file.length()).append(' ')
+                          .append(Files.getLastModifiedTime(file.toPath())
+                                  .to(TimeUnit.NANOSECONDS))
+                          .append('\n');
+                } catch (IOException excp) {
+                    result.append(file.getName()).append('\n');
+                }
+            }
         }
+        return result.toString();
     }
 
-    /** Save the commit object to a file in the directory of commits. */
-    public static void saveCommit(Commit commit) {
-        String refCommit = sha1(serialize(commit));
-        File initFile = join(COMMIT_DIR, refCommit);
-        writeObject(initFile, commit);
-        writeContents(HEADPointer(), refCommit);
+    /** Migrate the repository to CURRENT_FORMAT one version at a time.
+     * Objects are moved into their shards, and compressed if they were stored
+     * raw, then the commit graph is built. The format file is written after
+     * each step, so an interrupted migration is finished by the next
+     * command. */
+    private void upgradeFormat() {
+        if (formatVersion() < 3) {
+            boolean compress = formatVersion() < 2;
+            blobs.shard(compress);
+            commits.shard(compress);
+            setFormatVersion(3);
+        }
+        if (formatVersion() < 4) {
+            rebuildGraph();
+            setFormatVersion(4);
+        }
+        if (formatVersion() < 5) {
+            upgradeStagingArea();
+            setFormatVersion(5);
+        }
+        if (formatVersion() < 6) {
+            // Older commits keep their map of files, and their trees are
+            // written when first needed.
+            setFormatVersion(6);
+        }
+        if (formatVersion() < 7) {
+            // Serialized commits are still read, and new ones are encoded.
+            setFormatVersion(7);
+        }
+        if (formatVersion() < 8) {
+            indexChangedPaths();
+            setFormatVersion(8);
+        }
+    }
+
+    /** Write the commit graph of all commits afresh. */
+    private void rebuildGraph() {
+        graph.rebuild(commits.ids().collect(Collectors.toMap(refCommit -> refCommit, this::readCommit)));
+        indexChangedPaths();
+    }
+
+    /** Write the filters of the paths changed by every commit of the graph,
+     * comparing the trees of the commits in parallel. */
+    private void indexChangedPaths() {
+        int size = graph.size();
+        List<Set<String>> changed = IntStream.range(0, size).parallel()
+            .mapToObj(k -> changedPaths(readCommit(graph.id(k)))).toList();
+        graph.changedPaths().rebuild(size, changed::get);
+    }
+
+    /** Return the paths of the files the commit changes from its first
+     * parent, or from nothing if it has none. */
+    private Set<String> changedPaths(Commit commit) {
+        return trees.diff(parentTree(commit), commit.getTree(trees)).keySet();
+    }
+
+    /** Move the files staged in the directories of format 4 and earlier into
+     * the index, in one journaled transaction. The staged-for-addition
+     * directory is first renamed aside, since the index file takes its
+     * place, and both are deleted once the transaction is committed. */
+    private void upgradeStagingArea() {
+        if (oldStagedDir.isDirectory() && !oldStagedDir.renameTo(movedStagedDir)) {
+            throw new IllegalArgumentException("cannot move " + oldStagedDir);
+        }
+        if (!movedStagedDir.isDirectory() && !oldStagedRmDir.isDirectory()) {
+            return;
+        }
+        // The directories are only deleted once the journal holds the index
+        // and the blobs, so a crash before then migrates them again.
+        journal.begin();
+        try {
+            if (movedStagedDir.isDirectory()) {
+                for (String fileName : plainFilenamesIn(movedStagedDir)) {
+                    File file = join(movedStagedDir, fileName);
+                    index.add(fileName, blobs.write(file), join(workDir, fileName));
+                }
+            }
+            if (oldStagedRmDir.isDirectory()) {
+                Commit commit = HEADCommit();
+                for (String fileName : plainFilenamesIn(oldStagedRmDir)) {
+                    String refBlob = commit.getBlob(trees, fileName);
+                    if (refBlob != null) {
+                        index.remove(fileName, refBlob);
+                    }
+                }
+            }
+            index.write();
+            journal.commit();
+        } catch (RuntimeException | Error excp) {
+            journal.abort();
+            invalidateCaches();
+            throw excp;
+        }
+        for (File dir : new File[] {movedStagedDir, oldStagedRmDir}) {
+            if (dir.isDirectory()) {
+                for (String fileName : plainFilenamesIn(dir)) {
+                    join(dir, fileName).delete();
+                }
+                dir.delete();
+            }
+        }
+    }
+
+    /** Forget everything read from the .gitlet directory, so that it is read
+     * again; used when another process may have changed it. */
+    void invalidateCaches() {
+        index.reload();
+        statCache.reload();
+        graph.reload();
+        blobs.reload();
+        commits.reload();
+        trees.reload();
+        session.clear();
+        formatVersion = 0;
+    }
+
+    /** Record that the repository is now of the given format. */
+    private void setFormatVersion(int version) {
+        writeContents(formatFile, Integer.toString(version));
+        formatVersion = version;
+    }
+
+    /** Save the commit object to a file in the directory of commits, and
+     * return its ref. */
+    String saveCommit(Commit commit) {
+        String refCommit = commits.write(commit.encode());
+        graph.append(refCommit, commit);
+        graph.changedPaths().add(graph.size() - 1, changedPaths(commit));
+        session.saved(refCommit, commit);
+        session.setBranch(HEADPointer().getName(), refCommit);
+        return refCommit;
+    }
+
+    /** Return the commit with the given ref, reading it at most once per
+     * session. */
+    Commit readCommit(String refCommit) {
+        return session.commit(refCommit);
+    }
+
+    /** Read the commit with the given ref from the directory of commits. */
+    Commit loadCommit(String refCommit) {
+        return Commit.decode(commits.read(refCommit));
+    }
+
+    /** Return the format version of the repository. */
+    int formatVersion() {
+        if (formatVersion == 0) {
+            formatVersion = formatFile.exists() ? Integer.parseInt(readContentsAsString(formatFile).trim()) : 1;
+        }
+        return formatVersion;
     }
 
     /** Check if the staged area is not empty, so there are files to commit. */
-    private static boolean emptyIndex() {
-        return plainFilenamesIn(STAGED_DIR).size() + plainFilenamesIn(STAGED_RM_DIR).size() == 0;
+    private boolean emptyIndex() {
+        return index.isEmpty();
     }
 
     /** Generate the file which the HEAD is pointing to. */
-    public static File HEADPointer() {
-        return new File(readContentsAsString(HEAD));
+    File HEADPointer() {
+        return session.headPointer();
     }
 
     /** Return the ref string to the HEAD commit. */
-    public static String refHEADCommit() {
-        return readContentsAsString(HEADPointer());
+    String refHEADCommit() {
+        return session.headRef();
     }
 
     /** Retrieve the HEAD commit from the file. */
-    public static Commit HEADCommit() {
-        return readObject(join(COMMIT_DIR, readContentsAsString(HEADPointer())), Commit.class);
+    Commit HEADCommit() {
+        return session.headCommit();
     }
 
-    /** Check out commit. */
-    private static void checkOutCommit(Commit commit) {
-        for (String fileName : plainFilenamesIn(CWD)) {
-            if (commit.trees.containsKey(fileName) && (!HEADCommit().trees.containsKey(fileName))) {
-                System.out.println("There is an untracked file in the way; delete it, or add and commit it first.");
-                System.exit(0);
-            }
+    /** Return the file at the given path relative to the workDir, rejecting
+     * paths that lead out of it or into the .gitlet directory. */
+    private File workingFile(String path) {
+        Path file = workDir.toPath().resolve(path).normalize();
+        if (!file.startsWith(workDir.toPath()) || file.startsWith(gitletDir.toPath())) {
+            throw error("File is outside the working directory.");
         }
-        for (String fileName : HEADCommit().trees.keySet()) {
-            File currentFile = join(CWD, fileName);
-            restrictedDelete(currentFile);
-        }
-        for (String fileName : commit.trees.keySet()) {
-            byte[] fileContent = readContents(join(BLOB_DIR, commit.trees.get(fileName)));
-            writeContents(join(CWD, fileName), fileContent);
+        return file.toFile();
+    }
+
+    /** Return the paths relative to the workDir of the given file, or of the
+     * files under the given directory, leaving out the .gitlet directory.
+     * Paths are separated by '/' and sorted. */
+    List<String> workingFiles(File file) {
+        List<String> result = new ArrayList<>();
+        Path root = workDir.toPath();
+        try {
+            Files.walkFileTree(file.toPath().toAbsolutePath().normalize(), new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    return dir.equals(gitletDir.toPath())
+                        ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()) {
+                        result.add(root.relativize(path).toString()
+                                   .replace(File.separatorChar, '/'));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
         }
+        Collections.sort(result);
+        return result;
     }
 
-    /** Return the commit at the split point of two commits. */
-    private static Commit splitPoint(Commit commit1, Commit commit2) {
-        Set<Commit> commitSet = new HashSet<>();
-        findAncestor(commitSet, commit1);
-        return latestCommonAncestor(commitSet, commit2);
+    /** Return the blob ids of the files in the workDir, keyed by name. Files
+     * whose metadata did not change since they were last hashed are not
+     * read, and the others are hashed in parallel. */
+    private Map<String, String> workingBlobs() {
+        List<String> fileNames = workingFiles(workDir);
+        Map<String, String> result = new ConcurrentHashMap<>();
+        fileNames.parallelStream().forEach(fileName -> {
+            String refBlob = statCache.blobId(fileName, join(workDir, fileName));
+            if (refBlob != null) {
+                result.put(fileName, refBlob);
+            }
+        });
+        statCache.retainAll(fileNames);
+        statCache.write();
+        return result;
     }
 
-    /**
-     * Put all ancestors of the given commit to the set of commit recursively.
-     * @param commitSet The set of ancestors of commit.
-     * @param commit
-     */
-    private static void findAncestor(Set<Commit> commitSet, Commit commit) {
-        commitSet.add(commit);
-        if (commit.getParent() != null) {
-            findAncestor(commitSet, readObject(join(COMMIT_DIR, commit.getParent()), Commit.class));
+    /** Check out commit. Only the files whose blobs differ between the HEAD
+     * commit and the given one are deleted or written, found by comparing
+     * their trees, along with tracked files whose working copies no longer
+     * match their blobs. The files written are recorded in the stat cache,
+     * which then covers the new tree. */
+    private void checkOutCommit(Commit commit) {
+        String currentTree = HEADCommit().getTree(trees);
+        String targetTree = commit.getTree(trees);
+        TreeMap<String, String[]> diff = trees.diff(currentTree, targetTree);
+        for (Map.Entry<String, String[]> file : diff.entrySet()) {
+            if (file.getValue()[0] == null && join(workDir, file.getKey()).isFile()) {
+                throw error("There is an untracked file in the way; delete it, or add and commit it first.");
+            }
         }
-        if (commit.getSecondParent() != null) {
-            findAncestor(commitSet, readObject(join(COMMIT_DIR, commit.getSecondParent()), Commit.class));
+        List<String> removed = new ArrayList<>();
+        Map<String, String> changed = new HashMap<>();
+        for (Map.Entry<String, String[]> file : diff.entrySet()) {
+            if (file.getValue()[1] == null) {
+                removed.add(file.getKey());
+            } else {
+                changed.put(file.getKey(), file.getValue()[1]);
+            }
         }
+        modifiedFiles(currentTree).forEach((fileName, refBlob) -> {
+            if (!diff.containsKey(fileName)) {
+                changed.put(fileName, refBlob);
+            }
+        });
+        checkout.run(removed, changed);
+        statCache.removeAll(removed);
+        changed.forEach((fileName, refBlob) -> statCache.put(fileName, join(workDir, fileName), refBlob));
+        statCache.cover(targetTree);
+        statCache.write();
     }
 
-    /**
-     * Find the latest common ancestor of the given commit and the commit whose ancestors
-     * are in the given set of commit.
-     * @param commitSet
-     * @param commit
-     * @return
-     */
-    private static Commit latestCommonAncestor(Set<Commit> commitSet, Commit commit) {
-        if (commitSet.contains(commit)) {
-            return commit;
-        }
-
-        Queue<Commit> fringe = new LinkedList<>();
-        fringe.add(commit);
-
-        while(!fringe.isEmpty()) {
-            Commit currCommit = fringe.poll();
-            if (currCommit.getParent() != null) {
-                Commit firstParent = readObject(join(COMMIT_DIR, commit.getParent()), Commit.class);
-                if (commitSet.contains(firstParent)) {
-                    return firstParent;
+    /** Return the files of the given tree whose working copies differ from
+     * it, mapped to their blobs in it. If the stat cache covers the tree,
+     * only the files whose entries are stale are hashed; otherwise every
+     * file of the tree is checked. */
+    private Map<String, String> modifiedFiles(String tree) {
+        Map<String, String> candidates;
+        if (tree.equals(statCache.tree())) {
+            candidates = new HashMap<>();
+            for (String fileName : statCache.stalePaths(workDir)) {
+                String refBlob = trees.get(tree, fileName);
+                if (refBlob != null) {
+                    candidates.put(fileName, refBlob);
                 }
-                fringe.add(firstParent);
-            }
-            if (currCommit.getSecondParent() != null) {
-                Commit secondParent = readObject(join(COMMIT_DIR, commit.getSecondParent()), Commit.class);
-                if (commitSet.contains(secondParent)) {
-                    return secondParent;
-                }
-                fringe.add(secondParent);
             }
+        } else {
+            candidates = trees.files(tree);
         }
+        Map<String, String> result = new ConcurrentHashMap<>();
+        candidates.entrySet().parallelStream()
+            .filter(file -> !file.getValue().equals(statCache.blobId(file.getKey(), join(workDir, file.getKey()))))
+            .forEach(file -> result.put(file.getKey(), file.getValue()));
+        return result;
+    }
+
+    /** Return the ref of the split point of the two given commits, or null if
+     * they have no common ancestor. */
+    private String splitPoint(String refCommit1, String refCommit2) {
+        int split = MergeBase.find(graph, graph.indexOf(refCommit1), graph.indexOf(refCommit2));
+        return split == CommitGraph.NONE ? null : graph.id(split);
+    }
 
-        return null;
+    /** Return the ref of the commit named by the given branch name or commit id. */
+    private String resolveCommit(String name) {
+        String refCommit = session.branch(name);
+        return refCommit != null ? refCommit : findCommit(name);
+    }
+
+    /** Return the full ref of the only commit whose id starts with the given
+     * id, which has at least MIN_ABBREV hex digits. */
+    String findCommit(String refCommit) {
+        refCommit = refCommit.toLowerCase();
+        List<String> matches = List.of();
+        if (refCommit.length() >= MIN_ABBREV && refCommit.length() <= UID_LENGTH
+            && refCommit.chars().allMatch(c -> Character.digit(c, 16) >= 0)) {
+            matches = graph.idsStartingWith(refCommit, 2);
+        }
+        if (matches.isEmpty()) {
+            throw error("No commit with that id exists.");
+        }
+        if (matches.size() > 1) {
+            throw error("Ambiguous commit id.");
+        }
+        return matches.get(0);
     }
 }
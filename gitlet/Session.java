@@ -0,0 +1,132 @@
+package gitlet;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.function.Function;
+
+import static gitlet.Utils.*;
+
+/** The state of a repository read while running a command: what HEAD
+ *  points to, the refs of the branches, and the commits read, so that each
+ *  is read from disk at most once.  Refs and HEAD are forgotten at the start
+ *  of every command, since another process may have moved them since, but
+ *  commits never change, so they are kept, up to a bounded number, in a
+ *  least recently used cache.  Refs must be written through the session to
+ *  keep it up to date; it writes them through the journal, and reads them
+ *  back from it.
+ *
+ *  @author Han Liang
+ */
+class Session {
+
+    /** Most commits kept in the cache. */
+    private static final int MAX_COMMITS = 4096;
+
+    /** The file holding the HEAD reference. */
+    private final File head;
+    /** The directory of the branches. */
+    private final File headsDir;
+    /** The commits read, by ref. */
+    private final LruCache<String, Commit> commits = new LruCache<>(MAX_COMMITS);
+    /** The refs of the branches read, by name, with null for a missing one. */
+    private final LruCache<String, String> refs = new LruCache<>(MAX_COMMITS);
+    /** The journal that HEAD and the refs are written through. */
+    private final Journal journal;
+    /** Reads the commit with a given ref from disk. */
+    private final Function<String, Commit> load;
+    /** The branch HEAD points to, or null if not yet read. */
+    private File headPointer;
+
+    /** A session on the repository whose HEAD is in HEAD and whose branches
+     *  are in HEADSDIR, writing through JOURNAL and reading commits with
+     *  LOAD. */
+    Session(File head, File headsDir, Journal journal, Function<String, Commit> load) {
+        this.head = head;
+        this.headsDir = headsDir;
+        this.journal = journal;
+        this.load = load;
+    }
+
+    /** Forget HEAD and the refs, as at the start of a command. */
+    void begin() {
+        headPointer = null;
+        refs.clear();
+    }
+
+    /** Forget everything read. */
+    void clear() {
+        begin();
+        commits.clear();
+    }
+
+    /** Return the file of the branch HEAD points to. */
+    File headPointer() {
+        if (headPointer == null) {
+            headPointer = new File(read(head));
+        }
+        return headPointer;
+    }
+
+    /** Return the ref of the HEAD commit. */
+    String headRef() {
+        return branch(headPointer().getName());
+    }
+
+    /** Return the HEAD commit. */
+    Commit headCommit() {
+        return commit(headRef());
+    }
+
+    /** Return the ref of the branch NAME, or null if there is no such
+     *  branch. */
+    String branch(String name) {
+        String ref = refs.get(name);
+        if (ref == null) {
+            ref = read(join(headsDir, name));
+            if (ref != null) {
+                refs.put(name, ref);
+            }
+        }
+        return ref;
+    }
+
+    /** Return the names of the branches, sorted. */
+    List<String> branches() {
+        return journal.list(headsDir);
+    }
+
+    /** Return the commit REF. */
+    Commit commit(String ref) {
+        return commits.get(ref, load);
+    }
+
+    /** Record that COMMIT was written as REF. */
+    void saved(String ref, Commit commit) {
+        commits.put(ref, commit);
+    }
+
+    /** Point HEAD at the branch file BRANCH. */
+    void setHead(File branch) {
+        journal.write(head, branch.getPath().getBytes(StandardCharsets.UTF_8));
+        headPointer = branch;
+    }
+
+    /** Point the branch NAME at REF, creating it if needed. */
+    void setBranch(String name, String ref) {
+        journal.write(join(headsDir, name), ref.getBytes(StandardCharsets.UTF_8));
+        refs.put(name, ref);
+    }
+
+    /** Delete the branch NAME. */
+    void deleteBranch(String name) {
+        journal.delete(join(headsDir, name));
+        refs.remove(name);
+    }
+
+    /** Return the contents of FILE, or null if it does not exist. */
+    private String read(File file) {
+        byte[] contents = journal.read(file);
+        return contents == null ? null : new String(contents, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,297 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static gitlet.Utils.*;
+
+/** A cache of the blob ids of working files, keyed by path and validated by
+ *  the size, modification time and inode number of the file.  A file whose
+ *  metadata still match its entry is not read again.
+ *
+ *  A file modified no earlier than the cache was written could have changed
+ *  again within the same tick of the file system clock without its metadata
+ *  changing, so, as Git does, such racy entries are not trusted once the
+ *  cache is written, and the file is hashed again when next needed.
+ *
+ *  The cache may also name a tree it covers: every file of that tree has an
+ *  entry holding its blob in the tree, so that a working file of the tree
+ *  differs from it only if its entry no longer matches.  Forgetting entries,
+ *  or recording another blob for one, drops the tree.
+ *
+ *  @author Han Liang
+ */
+class StatCache {
+
+    /** Magic number at the start of the file. */
+    private static final int MAGIC = 0x47535443;
+    /** Version of the file format. */
+    private static final int VERSION = 2;
+    /** Modification time of entries that must be checked again. */
+    private static final long SMUDGED = -1;
+
+    /** An entry of the cache. */
+    private static class Entry {
+        final long size;
+        final long mtime;
+        final long inode;
+        final String blob;
+
+        Entry(long size, long mtime, long inode, String blob) {
+            this.size = size;
+            this.mtime = mtime;
+            this.inode = inode;
+            this.blob = blob;
+        }
+    }
+
+    /** The file holding the cache. */
+    private final File file;
+    /** The entries by path, read on first use. */
+    private volatile ConcurrentHashMap<String, Entry> entries;
+    /** The id of the tree covered, or null; read with the entries. */
+    private volatile String tree;
+    /** True iff the entries differ from the file. */
+    private volatile boolean dirty;
+
+    /** The cache stored in FILE. */
+    StatCache(File file) {
+        this.file = file;
+    }
+
+    /** Return the blob id of the contents of WORKINGFILE, the working file
+     *  at PATH, or null if it does not exist.  The file is only read if its
+     *  metadata changed since it was last hashed.  Safe to call from
+     *  several threads at once. */
+    String blobId(String path, File workingFile) {
+        long[] stat = stat(workingFile);
+        if (stat == null) {
+            return null;
+        }
+        String blob = cached(path, stat);
+        if (blob == null) {
+            blob = sha1(workingFile);
+            record(path, stat, blob);
+        }
+        return blob;
+    }
+
+    /** Return the blob id of WORKINGFILE, the working file at PATH, if its
+     *  metadata did not change since it was last hashed, and otherwise
+     *  null. */
+    String cachedId(String path, File workingFile) {
+        long[] stat = stat(workingFile);
+        return stat == null ? null : cached(path, stat);
+    }
+
+    /** Record that the working file WORKINGFILE at PATH holds the blob BLOB. */
+    void put(String path, File workingFile, String blob) {
+        long[] stat = stat(workingFile);
+        if (stat != null) {
+            record(path, stat, blob);
+        }
+    }
+
+    /** Return the paths of the entries that no longer match their working
+     *  files, the working directory being WORKDIR.  The files are looked at
+     *  in parallel. */
+    List<String> stalePaths(File workDir) {
+        return entries().entrySet().parallelStream()
+            .filter(item -> {
+                long[] stat = stat(join(workDir, item.getKey()));
+                return stat == null || cached(item.getKey(), stat) == null;
+            })
+            .map(Map.Entry::getKey)
+            .toList();
+    }
+
+    /** Return the id of the tree covered, or null. */
+    String tree() {
+        entries();
+        return tree;
+    }
+
+    /** Record that every file of the tree TREE has an entry holding its
+     *  blob in TREE. */
+    void cover(String tree) {
+        entries();
+        if (!tree.equals(this.tree)) {
+            this.tree = tree;
+            dirty = true;
+        }
+    }
+
+    /** Forget every path not in PATHS. */
+    void retainAll(Collection<String> paths) {
+        if (entries().keySet().retainAll(new HashSet<>(paths))) {
+            tree = null;
+            dirty = true;
+        }
+    }
+
+    /** Forget the paths in PATHS. */
+    void removeAll(Collection<String> paths) {
+        if (entries().keySet().removeAll(new HashSet<>(paths))) {
+            tree = null;
+            dirty = true;
+        }
+    }
+
+    /** Forget the entries read and recorded, so that they are read again. */
+    synchronized void reload() {
+        entries = null;
+        tree = null;
+        dirty = false;
+    }
+
+    /** Write the cache if it changed, replacing the file atomically.  The
+     *  entries of files modified no earlier than the new file are
+     *  smudged, in it and in memory, so that they are not trusted. */
+    void write() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            File temp = File.createTempFile("stat-cache", ".tmp", file.getParentFile());
+            // The temporary file is written, and dated, before any entry.
+            long written = modified(temp);
+            smudge(entries(), written);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                     Files.newOutputStream(temp.toPath())))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(tree == null ? "" : tree);
+                out.writeInt(entries().size());
+                for (Map.Entry<String, Entry> item : entries().entrySet()) {
+                    Entry entry = item.getValue();
+                    out.writeUTF(item.getKey());
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.mtime);
+                    out.writeLong(entry.inode);
+                    out.write(hexToBytes(entry.blob));
+                }
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        dirty = false;
+    }
+
+    /** Smudge the ENTRIES of files modified at WRITTEN, in nanoseconds, or
+     *  later. */
+    private static void smudge(Map<String, Entry> entries, long written) {
+        entries.replaceAll((path, entry) -> entry.mtime < written ? entry
+                           : new Entry(entry.size, SMUDGED, entry.inode, entry.blob));
+    }
+
+    /** Return the modification time of FILE in nanoseconds. */
+    private static long modified(File file) throws IOException {
+        return Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+    }
+
+    /** Return the blob id recorded for PATH if it was recorded with STAT,
+     *  and otherwise null. */
+    private String cached(String path, long[] stat) {
+        Entry entry = entries().get(path);
+        if (entry != null && entry.size == stat[0] && entry.mtime == stat[1]
+            && entry.inode == stat[2]) {
+            return entry.blob;
+        }
+        return null;
+    }
+
+    /** Record STAT and BLOB for PATH. */
+    private void record(String path, long[] stat, String blob) {
+        Entry old = entries().put(path, new Entry(stat[0], stat[1], stat[2], blob));
+        if (old != null && !old.blob.equals(blob)) {
+            tree = null;
+        }
+        dirty = true;
+    }
+
+    /** Return the size, modification time in nanoseconds and inode number
+     *  of FILE, or null if it is not a normal file.  The inode number is 0
+     *  where the file system does not report one. */
+    static long[] stat(File file) {
+        try {
+            Map<String, Object> attrs;
+            try {
+                attrs = Files.readAttributes(file.toPath(), "unix:size,lastModifiedTime,ino,isRegularFile");
+            } catch (UnsupportedOperationException | IllegalArgumentException excp) {
+                attrs = Files.readAttributes(file.toPath(), "size,lastModifiedTime,isRegularFile");
+            }
+            if (!(Boolean) attrs.get("isRegularFile")) {
+                return null;
+            }
+            Object inode = attrs.get("ino");
+            return new long[] {
+                (Long) attrs.get("size"),
+                ((FileTime) attrs.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS),
+                inode == null ? 0 : (Long) inode
+            };
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /** Return the entries, reading them if needed. */
+    private ConcurrentHashMap<String, Entry> entries() {
+        return entries != null ? entries : load();
+    }
+
+    /** Read the entries from the file, unless another thread already has. */
+    private synchronized ConcurrentHashMap<String, Entry> load() {
+        if (entries != null) {
+            return entries;
+        }
+        ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+        if (file.isFile()) {
+            read(entries);
+        }
+        this.entries = entries;
+        return entries;
+    }
+
+    /** Read the file into ENTRIES and the tree it covers, leaving them
+     *  empty if it is unreadable.  Entries of files modified no earlier
+     *  than it, which a version that wrote them without smudging may have
+     *  left, are smudged. */
+    private void read(Map<String, Entry> entries) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                 Files.newInputStream(file.toPath())))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            String covered = in.readUTF();
+            byte[] blob = new byte[UID_LENGTH / 2];
+            for (int n = in.readInt(); n > 0; n -= 1) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long mtime = in.readLong();
+                long inode = in.readLong();
+                in.readFully(blob);
+                entries.put(path, new Entry(size, mtime, inode,
+                                            bytesToHex(blob, 0, blob.length)));
+            }
+            smudge(entries, modified(file));
+            tree = covered.isEmpty() ? null : covered;
+        } catch (IOException excp) {
+            entries.clear();
+        }
+    }
+}
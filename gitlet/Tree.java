@@ -0,0 +1,276 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+
+import static gitlet.Utils.*;
+
+/** The directories of the commits of a repository.  A tree holds the blob
+ *  ids of the files directly in a directory and the tree ids of its
+ *  subdirectories, sorted by name, and is stored under the hash of its
+ *  encoding, so two commits that share a directory share its tree, and a
+ *  commit only writes the trees along the paths it changes.  Comparing two trees only descends into the
+ *  subdirectories whose ids differ.
+ *
+ *  Trees are referred to by id; the empty tree, EMPTY, is never read from
+ *  the store.
+ *
+ *  @author Han Liang
+ */
+class Tree {
+
+    /** Kind of an entry holding a file. */
+    private static final byte FILE = 0;
+    /** Kind of an entry holding a subdirectory. */
+    private static final byte DIRECTORY = 1;
+
+    /** An entry of a tree. */
+    private static class Entry {
+        /** Id of the blob or tree. */
+        final String id;
+        /** True iff this is a subdirectory. */
+        final boolean directory;
+
+        Entry(String id, boolean directory) {
+            this.id = id;
+            this.directory = directory;
+        }
+    }
+
+    /** The id of the tree with no entries. */
+    static final String EMPTY = sha1(encode(new TreeMap<>()));
+
+    /** Most trees kept in the cache. */
+    private static final int MAX_CACHED = 1 << 16;
+
+    /** Trees recently read or written, by id, shared by all repositories
+     *  since equal ids have equal contents. */
+    private static final LruCache<String, TreeMap<String, Entry>> CACHE =
+        new LruCache<>(MAX_CACHED);
+
+    /** The store holding the trees. */
+    private final ObjectStore store;
+
+    /** The trees held in STORE. */
+    Tree(ObjectStore store) {
+        this.store = store;
+    }
+
+    /** Return the id of the blob at PATH in the tree ROOT, or null. */
+    String get(String root, String path) {
+        Entry entry = entry(root, path);
+        return entry == null || entry.directory ? null : entry.id;
+    }
+
+    /** Return the id of the blob or of the tree at PATH in the tree ROOT,
+     *  or null if it has neither. */
+    String find(String root, String path) {
+        Entry entry = entry(root, path);
+        return entry == null ? null : entry.id;
+    }
+
+    /** Return a map from the paths of all files in the tree ROOT to their
+     *  blob ids. */
+    HashMap<String, String> files(String root) {
+        HashMap<String, String> result = new HashMap<>();
+        forEachFile(root, "", null, result::put);
+        return result;
+    }
+
+    /** Call ACTION with the path and blob id of every file of the tree ID,
+     *  prefixing the paths with PREFIX.  If VISITED is not null, subtrees
+     *  whose prefix and id are in it are skipped, and those visited are
+     *  added to it. */
+    void forEachFile(String id, String prefix, Set<String> visited,
+                     BiConsumer<String, String> action) {
+        if (visited != null && !visited.add(prefix + id)) {
+            return;
+        }
+        for (Map.Entry<String, Entry> item : read(id).entrySet()) {
+            Entry entry = item.getValue();
+            if (entry.directory) {
+                forEachFile(entry.id, prefix + item.getKey() + "/", visited, action);
+            } else {
+                action.accept(prefix + item.getKey(), entry.id);
+            }
+        }
+    }
+
+    /** Add the ids of the tree ROOT and of the trees under it to TREES, and
+     *  those of their files to BLOBS, skipping the trees already in TREES.
+     *  Several threads may mark at once if both sets allow it. */
+    void mark(String root, Set<String> trees, Set<String> blobs) {
+        if (root.equals(EMPTY) || !trees.add(root)) {
+            return;
+        }
+        for (Entry entry : read(root).values()) {
+            if (entry.directory) {
+                mark(entry.id, trees, blobs);
+            } else {
+                blobs.add(entry.id);
+            }
+        }
+    }
+
+    /** Return the id of the tree ROOT with CHANGES applied, writing the new
+     *  trees.  CHANGES maps paths to their new blob ids, or to null for paths
+     *  to remove.  Only the trees along the changed paths are written, and
+     *  directories left empty are removed. */
+    String apply(String root, Map<String, String> changes) {
+        if (changes.isEmpty()) {
+            return root;
+        }
+        TreeMap<String, Entry> entries = new TreeMap<>(read(root));
+        Map<String, Map<String, String>> nested = new TreeMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash >= 0) {
+                nested.computeIfAbsent(path.substring(0, slash), k -> new HashMap<>())
+                      .put(path.substring(slash + 1), change.getValue());
+            } else if (change.getValue() == null) {
+                Entry old = entries.get(path);
+                if (old != null && !old.directory) {
+                    entries.remove(path);
+                }
+            } else {
+                entries.put(path, new Entry(change.getValue(), false));
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> dir : nested.entrySet()) {
+            Entry old = entries.get(dir.getKey());
+            String base = old != null && old.directory ? old.id : EMPTY;
+            String id = apply(base, dir.getValue());
+            if (id.equals(EMPTY)) {
+                if (old != null && old.directory) {
+                    entries.remove(dir.getKey());
+                }
+            } else {
+                entries.put(dir.getKey(), new Entry(id, true));
+            }
+        }
+        return write(entries);
+    }
+
+    /** Return the files that differ between the trees ONE and TWO, mapping
+     *  each path to its blob ids in ONE and in TWO, either of which may be
+     *  null.  Subtrees with equal ids are not read. */
+    TreeMap<String, String[]> diff(String one, String two) {
+        TreeMap<String, String[]> result = new TreeMap<>();
+        diff(one, two, "", result);
+        return result;
+    }
+
+    /** Add the differences between trees ONE and TWO, with their paths
+     *  prefixed by PREFIX, to RESULT. */
+    private void diff(String one, String two, String prefix,
+                      TreeMap<String, String[]> result) {
+        if (one.equals(two)) {
+            return;
+        }
+        TreeMap<String, Entry> entries1 = read(one);
+        TreeMap<String, Entry> entries2 = read(two);
+        TreeSet<String> names = new TreeSet<>(entries1.keySet());
+        names.addAll(entries2.keySet());
+        for (String name : names) {
+            Entry entry1 = entries1.get(name);
+            Entry entry2 = entries2.get(name);
+            String file1 = entry1 != null && !entry1.directory ? entry1.id : null;
+            String file2 = entry2 != null && !entry2.directory ? entry2.id : null;
+            if (file1 == null ? file2 != null : !file1.equals(file2)) {
+                result.put(prefix + name, new String[] {file1, file2});
+            }
+            String dir1 = entry1 != null && entry1.directory ? entry1.id : EMPTY;
+            String dir2 = entry2 != null && entry2.directory ? entry2.id : EMPTY;
+            diff(dir1, dir2, prefix + name + "/", result);
+        }
+    }
+
+    /** Return the store holding the trees. */
+    ObjectStore store() {
+        return store;
+    }
+
+    /** Forget the packs of the store, so that they are listed again. */
+    void reload() {
+        store.reload();
+    }
+
+    /** Return the entry at PATH in the tree ROOT, or null. */
+    private Entry entry(String root, String path) {
+        String tree = root;
+        int start = 0;
+        for (int slash = path.indexOf('/'); slash >= 0; slash = path.indexOf('/', start)) {
+            Entry entry = read(tree).get(path.substring(start, slash));
+            if (entry == null || !entry.directory) {
+                return null;
+            }
+            tree = entry.id;
+            start = slash + 1;
+        }
+        return read(tree).get(path.substring(start));
+    }
+
+    /** Return the entries of the tree ID. */
+    private TreeMap<String, Entry> read(String id) {
+        if (id.equals(EMPTY)) {
+            return new TreeMap<>();
+        }
+        TreeMap<String, Entry> entries = CACHE.get(id);
+        if (entries != null) {
+            return entries;
+        }
+        entries = new TreeMap<>();
+        try (DataInputStream in = new DataInputStream(
+                 new ByteArrayInputStream(store.read(id)))) {
+            byte[] child = new byte[UID_LENGTH / 2];
+            for (int n = in.readInt(); n > 0; n -= 1) {
+                boolean directory = in.readByte() == DIRECTORY;
+                String name = in.readUTF();
+                in.readFully(child);
+                entries.put(name, new Entry(bytesToHex(child, 0, child.length), directory));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        CACHE.put(id, entries);
+        return entries;
+    }
+
+    /** Store the tree with ENTRIES and return its id. */
+    private String write(TreeMap<String, Entry> entries) {
+        byte[] content = encode(entries);
+        String id = sha1(content);
+        if (!id.equals(EMPTY)) {
+            store.write(id, content);
+            CACHE.put(id, entries);
+        }
+        return id;
+    }
+
+    /** Return the encoding of a tree with ENTRIES: their number, then the
+     *  kind, name and raw id of each, in order of name. */
+    private static byte[] encode(TreeMap<String, Entry> entries) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> item : entries.entrySet()) {
+                out.writeByte(item.getValue().directory ? DIRECTORY : FILE);
+                out.writeUTF(item.getKey());
+                out.write(hexToBytes(item.getValue().id));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+}
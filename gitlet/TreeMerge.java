@@ -0,0 +1,112 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+
+/** The merge of two trees descended from a common base tree, computed from
+ *  the object stores alone.  Only the files that differ between the base
+ *  and either side are looked at, found by comparing the trees; a file
+ *  changed on one side only takes that side's blob without being read, and
+ *  a file changed on both sides is merged line by line with Merge.  The
+ *  merged blobs and trees are stored, but the working directory and the
+ *  index are never touched, so a merge may be computed just to see whether
+ *  it would conflict.
+ *
+ *  @author Han Liang
+ */
+class TreeMerge {
+
+    /** The result of a merge: the id of the merged tree, the files whose
+     *  blobs differ from those of the first side, mapped to their merged
+     *  blobs or to null if the merge deletes them, and the files left with
+     *  conflicts, sorted. */
+    record Result(String tree, Map<String, String> changes, TreeSet<String> conflicts) {
+    }
+
+    /** Merged files no larger than this are built in memory. */
+    private static final int MAX_IN_MEMORY = 1 << 20;
+
+    /** The trees merged. */
+    private final Tree trees;
+    /** The blobs of the files merged. */
+    private final ObjectStore blobs;
+
+    /** A merge of trees of TREES, whose files are in BLOBS. */
+    TreeMerge(Tree trees, ObjectStore blobs) {
+        this.trees = trees;
+        this.blobs = blobs;
+    }
+
+    /** Return the merge of the trees OURS and THEIRS, both descended from
+     *  the tree BASE. */
+    Result merge(String base, String ours, String theirs) {
+        TreeSet<String> changed = new TreeSet<>(trees.diff(base, ours).keySet());
+        changed.addAll(trees.diff(base, theirs).keySet());
+        Map<String, String> changes = new HashMap<>();
+        TreeSet<String> conflicts = new TreeSet<>();
+        for (String fileName : changed) {
+            String refBase = trees.get(base, fileName);
+            String refOurs = trees.get(ours, fileName);
+            String refTheirs = trees.get(theirs, fileName);
+            if (Objects.equals(refOurs, refTheirs) || Objects.equals(refBase, refTheirs)) {
+                continue;
+            }
+            if (Objects.equals(refBase, refOurs)) {
+                changes.put(fileName, refTheirs);
+                continue;
+            }
+            try {
+                changes.put(fileName, mergeFile(refBase, refOurs, refTheirs, fileName, conflicts));
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        return new Result(trees.apply(ours, changes), changes, conflicts);
+    }
+
+    /** Store the line merge of the blobs REFOURS and REFTHEIRS against
+     *  REFBASE, any of which may be null for a missing file, and return its
+     *  id, adding FILENAME to CONFLICTS if it has any. */
+    private String mergeFile(String refBase, String refOurs, String refTheirs,
+                             String fileName, TreeSet<String> conflicts) throws IOException {
+        ByteBuffer base = load(refBase), ours = load(refOurs), theirs = load(refTheirs);
+        if (ours.limit() + theirs.limit() <= MAX_IN_MEMORY) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (Merge.write(base, ours, theirs, out)) {
+                conflicts.add(fileName);
+            }
+            return blobs.write(out.toByteArray());
+        }
+        File merged = File.createTempFile("merge", ".tmp");
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(merged.toPath()))) {
+                if (Merge.write(base, ours, theirs, out)) {
+                    conflicts.add(fileName);
+                }
+            }
+            return blobs.write(merged);
+        } finally {
+            merged.delete();
+        }
+    }
+
+    /** Return the contents of the blob REFBLOB, or nothing if it is null. */
+    private ByteBuffer load(String refBlob) throws IOException {
+        if (refBlob == null) {
+            return ByteBuffer.allocate(0);
+        }
+        try (InputStream in = blobs.open(refBlob)) {
+            return Diff.load(in);
+        }
+    }
+}
@@ -1,11 +1,15 @@
 package gitlet;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
@@ -17,6 +21,8 @@ import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Formatter;
 import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 
 /** Assorted utilities.
@@ -30,6 +36,8 @@ class Utils {
 
     /** The length of a complete SHA-1 UID as a hexadecimal numeral. */
     static final int UID_LENGTH = 40;
+    /** The size of the buffers files are streamed through. */
+    static final int BUFFER_SIZE = 1 << 16;
 
     /* SHA-1 HASH VALUES. */
 
@@ -63,6 +71,46 @@ class Utils {
         return sha1(vals.toArray(new Object[vals.size()]));
     }
 
+    /** Returns the SHA-1 hash of the contents of FILE, which is read through
+     *  a fixed-size buffer rather than all at once.  Throws
+     *  IllegalArgumentException in case of problems. */
+    static String sha1(File file) {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                md.update(buffer, 0, n);
+            }
+            byte[] digest = md.digest();
+            return bytesToHex(digest, 0, digest.length);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /** Returns the UID_LENGTH / 2 raw bytes of the hexadecimal UID ID. */
+    static byte[] hexToBytes(String id) {
+        byte[] result = new byte[id.length() / 2];
+        for (int i = 0; i < result.length; i += 1) {
+            result[i] = (byte) Integer.parseInt(id.substring(2 * i, 2 * i + 2), 16);
+        }
+        return result;
+    }
+
+    /** Returns the hexadecimal numeral of the LENGTH bytes of BYTES starting
+     *  at OFFSET. */
+    static String bytesToHex(byte[] bytes, int offset, int length) {
+        char[] result = new char[2 * length];
+        for (int i = 0; i < length; i += 1) {
+            int b = bytes[offset + i] & 0xff;
+            result[2 * i] = Character.forDigit(b >> 4, 16);
+            result[2 * i + 1] = Character.forDigit(b & 0xf, 16);
+        }
+        return new String(result);
+    }
+
     /* FILE DELETION */
 
     /** Deletes FILE if it exists and is not a directory.  Returns true
@@ -88,6 +136,26 @@ class Utils {
         return restrictedDelete(new File(file));
     }
 
+    /** Deletes the file at the relative PATH in WORKDIR if it exists and is
+     *  not a directory, along with any directories between it and WORKDIR
+     *  that it leaves empty.  Returns true if the file was deleted.  Refuses
+     *  to delete it and throws IllegalArgumentException unless WORKDIR
+     *  contains a directory named .gitlet. */
+    static boolean restrictedDelete(File workDir, String path) {
+        if (!(new File(workDir, ".gitlet")).isDirectory()) {
+            throw new IllegalArgumentException("not .gitlet working directory");
+        }
+        File file = new File(workDir, path);
+        if (file.isDirectory() || !file.delete()) {
+            return false;
+        }
+        for (File dir = file.getParentFile(); !dir.equals(workDir) && dir.delete();
+             dir = dir.getParentFile()) {
+            continue;
+        }
+        return true;
+    }
+
     /* READING AND WRITING FILE CONTENTS */
 
     /** Return the entire contents of FILE as a byte array.  FILE must
@@ -136,6 +204,59 @@ class Utils {
         }
     }
 
+    /* COMPRESSED FILES */
+
+    /** Magic number at the start of a compressed file. */
+    static final int COMPRESSED_MAGIC = 0x474c5a01;
+
+    /** Write CONTENTS to FILE as a zlib stream, preceded by a header holding
+     *  COMPRESSED_MAGIC and the length of CONTENTS, creating or overwriting
+     *  FILE as needed.  Throws IllegalArgumentException in case of
+     *  problems. */
+    static void writeCompressed(File file, byte[] contents) {
+        writeContents(file, compress(contents));
+    }
+
+    /** Return CONTENTS as writeCompressed stores them. */
+    static byte[] compress(byte[] contents) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream str = new DataOutputStream(bytes)) {
+            str.writeInt(COMPRESSED_MAGIC);
+            str.writeLong(contents.length);
+            try (DeflaterOutputStream zip = new DeflaterOutputStream(str)) {
+                zip.write(contents);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Return the uncompressed contents of FILE, which must have been
+     *  written by writeCompressed.  Throws IllegalArgumentException in case
+     *  of problems. */
+    static byte[] readCompressed(File file) {
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("must be a normal file");
+        }
+        try (DataInputStream str = new DataInputStream(
+                 Files.newInputStream(file.toPath()))) {
+            if (str.readInt() != COMPRESSED_MAGIC) {
+                throw new IllegalArgumentException("not a compressed file");
+            }
+            int length = (int) str.readLong();
+            try (InflaterInputStream zip = new InflaterInputStream(str)) {
+                byte[] result = zip.readNBytes(length);
+                if (result.length != length) {
+                    throw new IllegalArgumentException("truncated compressed file");
+                }
+                return result;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
     /** Return an object of type T read from FILE, casting it to EXPECTEDCLASS.
      *  Throws IllegalArgumentException in case of problems. */
     static <T extends Serializable> T readObject(File file,
@@ -222,6 +343,21 @@ class Utils {
 
 
 
+    /** Returns the object of type T serialized in BYTES, casting it to
+     *  EXPECTEDCLASS.  Throws IllegalArgumentException in case of problems. */
+    static <T extends Serializable> T deserialize(byte[] bytes,
+                                                  Class<T> expectedClass) {
+        try (ObjectInputStream in =
+                 new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return expectedClass.cast(in.readObject());
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+
+
     /* MESSAGES AND ERROR REPORTING */
 
     /** Return a GitletException whose message is composed from MSG and ARGS as